@@ -1,3 +1,4 @@
+import org.graalvm.buildtools.gradle.dsl.GraalVMExtension
 import org.gradle.nativeplatform.platform.internal.DefaultNativePlatform
 import java.util.*
 
@@ -8,12 +9,21 @@
     application
 }
 
+// -Pnative builds a native executable, which can't load libraries at runtime, so they are resolved at build time
+val nativeBuild = providers.gradleProperty("native").isPresent
+
 fun DependencyHandler.runtimeDownloadApi(dependencyNotation: Any) {
     api(dependencyNotation)
-    runtimeDownload(dependencyNotation)
+    if (!nativeBuild) {
+        runtimeDownload(dependencyNotation)
+    }
 }
 
 fun DependencyHandler.runtimeDownloadOnlyApi(dependencyNotation: Any) {
+    if (nativeBuild) {
+        implementation(dependencyNotation)
+        return
+    }
     compileOnlyApi(dependencyNotation)
     runtimeDownload(dependencyNotation)
 }
@@ -33,13 +43,24 @@ fun DependencyHandler.runtimeDownloadOnlyApi(dependencyNotation: Any) {
     runtimeDownloadOnlyApi("org.spongepowered:configurate-hocon:4.2.0-SNAPSHOT")
     implementation(libs.gremlin.runtime)
     runtimeDownloadOnlyApi("org.spongepowered:configurate-extra-kotlin:4.2.0-SNAPSHOT")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:brotli4j:1.13.0")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-windows-x86_64:1.13.0")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-osx-aarch64:1.13.0")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-osx-x86_64:1.13.0")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-linux-armv7:1.13.0")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-linux-aarch64:1.13.0")
-    runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-linux-x86_64:1.13.0")
+    if (!nativeBuild) { // native executables only compress with gzip
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:brotli4j:1.13.0")
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-windows-x86_64:1.13.0")
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-osx-aarch64:1.13.0")
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-osx-x86_64:1.13.0")
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-linux-armv7:1.13.0")
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-linux-aarch64:1.13.0")
+        runtimeDownloadOnlyApi("com.aayushatharva.brotli4j:native-linux-x86_64:1.13.0")
+    }
+
+    testImplementation(kotlin("test"))
+    testImplementation("org.junit.jupiter:junit-jupiter:5.10.1")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+// libraries downloaded at runtime are only compile-time dependencies of the app, tests need them on their classpath
+configurations.testImplementation {
+    extendsFrom(configurations.compileOnlyApi.get())
 }
 
 applyJarMetadata("imagery-app")
@@ -56,6 +77,10 @@ fun DependencyHandler.runtimeDownloadOnlyApi(dependencyNotation: Any) {
     runShadow {
         workingDir = file("run").also(File::mkdirs)
     }
+
+    test {
+        useJUnitPlatform()
+    }
 }
 
 idea {
@@ -79,6 +104,66 @@ fun DependencyHandler.runtimeDownloadOnlyApi(dependencyNotation: Any) {
     defaultGremlinRuntimeDependency.set(false)
 }
 
+if (nativeBuild) {
+    apply(plugin = "org.graalvm.buildtools.native")
+
+    configure<GraalVMExtension> {
+        binaries {
+            named("main") {
+                imageName.set("imagery")
+                mainClass.set(application.mainClass)
+            }
+        }
+        // the reflection metadata is hand-written and only covers the app's own classes. `-Pnative -Pagent run`
+        // traces a training run on the JVM, and `-Pnative metadataCopy` merges what it recorded into the
+        // checked-in configuration, libraries included
+        agent {
+            defaultMode.set("standard")
+            metadataCopy {
+                inputTaskNames.add("run")
+                outputDirectories.add("src/main/resources/META-INF/native-image/dev.mizule/imagery-app")
+                mergeWithExisting.set(true)
+            }
+        }
+    }
+
+    // the libraries are already on the classpath in native builds, so the launcher goes straight to the training run
+    tasks.named<JavaExec>("run") {
+        workingDir = file("run").also(File::mkdirs)
+        jvmArgs("-Dimagery.classpath.resolved=true")
+        args("--training-run")
+    }
+
+    // the training run boots the executable on a temporary directory, then uploads and serves a file. The build
+    // fails when its first request was answered later than -PnativeStartupBudgetMs after launch, 100 by default
+    tasks.register<Exec>("nativeSmokeTest") {
+        group = "verification"
+        dependsOn("nativeCompile")
+        val workDir = layout.buildDirectory.dir("native/smoke-test")
+        val report = workDir.map { it.file("startup.txt").asFile }
+        val budget = providers.gradleProperty("nativeStartupBudgetMs").map(String::toLong).orElse(100L)
+        workingDir(workDir)
+        executable(layout.buildDirectory.file("native/nativeCompile/imagery").get().asFile)
+        doFirst {
+            workDir.get().asFile.mkdirs()
+            report.get().delete()
+            // counted from just before the process is spawned, so startup of the executable itself is included
+            args(
+                "-Dimagery.launch.start=${System.currentTimeMillis()}",
+                "-Dimagery.training.report=${report.get().absolutePath}",
+                "--training-run",
+            )
+        }
+        doLast {
+            val startup = report.get().readText().trim().toLong()
+            check(startup <= budget.get()) {
+                "The native executable answered its first request $startup ms after launch, over the budget of ${budget.get()} ms"
+            }
+            logger.lifecycle("The native executable answered its first request $startup ms after launch")
+        }
+    }
+}
+
 configurations.runtimeDownload {
     exclude("org.checkerframework", "checker-qual")
     exclude("org.jetbrains", "annotations")
@@ -2,7 +2,6 @@
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -71,36 +70,16 @@ public Class <?> defineClass(@NotNull String name, @NotNull InputStream classByt
     }
 
     /**
-     * Reads all bytes, and safely closes {@link InputStream}. Always has buffer length 4 KB.
+     * Reads all bytes, and safely closes {@link InputStream}.
      *
      * @return The all bytes of {@link InputStream}
      * @param inputStream {@link InputStream} that would be read
      * @throws IOException If {@link InputStream} has been closed, or bytes cannot be read, or other I/O error occurs.
-     * @see InputStream#read(byte[], int, int)
+     * @see InputStream#readAllBytes()
      */
     private static byte[] readAllBytes(@NotNull InputStream inputStream) throws IOException {
-        final int bufLen = 4 * 0x400; // 4KB
-        byte[] buf = new byte[bufLen];
-        int readLen;
-        IOException exception = null;
-
-        try {
-            try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-                while ((readLen = inputStream.read(buf, 0, bufLen)) != -1)
-                    outputStream.write(buf, 0, readLen);
-
-                return outputStream.toByteArray();
-            }
-        } catch (IOException e) {
-            exception = e;
-            throw e;
-        } finally {
-            if (exception == null) inputStream.close();
-            else try {
-                inputStream.close();
-            } catch (IOException e) {
-                exception.addSuppressed(e);
-            }
+        try (inputStream) {
+            return inputStream.readAllBytes();
         }
     }
 }
\ No newline at end of file
@@ -24,152 +24,998 @@
  */
 package dev.mizule.imagery.app
 
+import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.github.benmanes.caffeine.cache.Cache
 import com.github.benmanes.caffeine.cache.Caffeine
+import dev.mizule.imagery.app.analysis.AnalyzingInputStream
+import dev.mizule.imagery.app.analysis.FileSniffer
+import dev.mizule.imagery.app.analysis.PlaceholderGenerator
+import dev.mizule.imagery.app.analysis.UploadAnalysis
+import dev.mizule.imagery.app.archive.ArchiveStreamer
 import dev.mizule.imagery.app.auth.AuthHandler
+import dev.mizule.imagery.app.backup.SnapshotManager
+import dev.mizule.imagery.app.auth.UrlSigner
+import dev.mizule.imagery.app.auth.User
+import dev.mizule.imagery.app.cache.HotSet
+import dev.mizule.imagery.app.cluster.ClusterManager
 import dev.mizule.imagery.app.config.Config
+import dev.mizule.imagery.app.config.ConfigLoader
 import dev.mizule.imagery.app.exceptions.FileNotFoundResponse
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.integrity.Reconciler
+import dev.mizule.imagery.app.integrity.Scrubber
+import dev.mizule.imagery.app.launcher.ClassDataSharing
+import dev.mizule.imagery.app.launcher.NativeImage
+import dev.mizule.imagery.app.metrics.CacheMissEvent
+import dev.mizule.imagery.app.metrics.PhaseTimer
+import dev.mizule.imagery.app.metrics.ServeEvent
+import dev.mizule.imagery.app.metrics.UploadEvent
+import dev.mizule.imagery.app.metrics.ViewStats
+import dev.mizule.imagery.app.model.FileMetadata
 import dev.mizule.imagery.app.model.ImageLookupResult
+import dev.mizule.imagery.app.model.MissingFile
 import dev.mizule.imagery.app.model.Roles
+import dev.mizule.imagery.app.model.UploadNegotiationRequest
+import dev.mizule.imagery.app.model.UploadSessionRequest
 import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.quota.UsageTracker
+import dev.mizule.imagery.app.storage.CachingStorageBackend
+import dev.mizule.imagery.app.storage.LocalStorageBackend
+import dev.mizule.imagery.app.storage.S3StorageBackend
+import dev.mizule.imagery.app.storage.SegmentStorageBackend
+import dev.mizule.imagery.app.storage.StorageBackend
+import dev.mizule.imagery.app.upload.UploadSessionManager
+import dev.mizule.imagery.app.util.FileWatcher
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.javalin.Javalin
 import io.javalin.http.BadRequestResponse
+import io.javalin.http.ConflictResponse
 import io.javalin.http.ContentType
 import io.javalin.http.Context
 import io.javalin.http.ForbiddenResponse
+import io.javalin.http.Header
+import io.javalin.http.HttpResponseException
+import io.javalin.http.HttpStatus
+import io.javalin.http.NotFoundResponse
+import io.javalin.http.ServiceUnavailableResponse
 import io.javalin.json.JavalinJackson
 import io.javalin.util.ConcurrencyUtil
-import org.eclipse.jetty.http.MimeTypes
-import org.spongepowered.configurate.jackson.JacksonConfigurationLoader
-import org.spongepowered.configurate.kotlin.objectMapperFactory
+import org.spongepowered.configurate.util.NamingSchemes
+import java.io.OutputStream
 import java.nio.file.Path
+import java.time.DateTimeException
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import jdk.jfr.Event
 import kotlin.io.path.Path
-import kotlin.io.path.createDirectories
-import kotlin.io.path.inputStream
-import kotlin.io.path.outputStream
 
 private val logger = KotlinLogging.logger {}
 
-class App(val config: Config, usersConfigOption: String) {
+class App(initialConfig: Config, usersConfigOption: String, private val configPath: Path? = null) {
+    // request threads read whichever snapshot is current, reloads publish a new one
+    private val configRef = AtomicReference(initialConfig)
+    val config: Config
+        get() = configRef.get()
+
     private val scheduler = ConcurrencyUtil.executorService("Imagery Scheduler", true)
-    private val storageDir = Path(config.storagePath)
-    private val dataLoader = JacksonConfigurationLoader.builder()
-        .path(Path(config.indexPath))
-        .defaultOptions { options ->
-            options.shouldCopyDefaults(true)
-            options.serializers { builder ->
-                builder.registerAnnotatedObjects(objectMapperFactory())
-            }
-        }
-        .build()
+    private val uploadExecutor = ConcurrencyUtil.executorService("Imagery Upload", true)
+    private val maintenance = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "Imagery Maintenance").apply { isDaemon = true }
+    }
+    private val primaryStorage = createPrimaryStorage()
+    private val storage = withSegments(primaryStorage)
+    private val fileIndex = FileIndex(Path(config.indexPath), scheduler)
     private val authHandler = AuthHandler(usersConfigOption)
+    private val usage = UsageTracker(config.quotas, MAPPER) { file ->
+        file.size.takeIf { it >= 0 } ?: storage.size(file.storageKey) ?: 0
+    }
+    private val uploadSessions = UploadSessionManager(
+        Path(config.chunkedUploads.path),
+        config.chunkedUploads.maxSize,
+        config.chunkedUploads.expiryMinutes,
+        config.chunkedUploads.maxSessionsPerUser,
+    )
+    private val cluster = if (config.cluster.enabled) {
+        ClusterManager(config.cluster, fileIndex, storage, Path(config.indexPath).resolveSibling("cluster.state"), MAPPER)
+    } else {
+        null
+    }
 
-    private val dataNode = dataLoader.load()
-    private val cache: Cache<String, FileCacheEntry> = Caffeine.newBuilder() // This is really not needed, but, yes.
+    // size-bounded so its frequency sketch can tell which uploads are hot
+    private val cache: Cache<String, UploadedFile> = Caffeine.newBuilder()
+        .maximumSize(config.metadataCache.maximumSize)
         .expireAfterWrite(15, TimeUnit.MINUTES)
         .expireAfterAccess(10, TimeUnit.MINUTES)
         .build()
+    private val hotSet = HotSet(config.metadataCache, MAPPER)
+
+    private val scrubber = if (config.scrubber.enabled) {
+        Scrubber(config.scrubber, fileIndex, storage, MAPPER)
+    } else {
+        null
+    }
+
+    // decoding needs AWT, which native images don't ship without extra configuration
+    private val placeholders = if (config.placeholders.enabled && !NativeImage.inImage) {
+        PlaceholderGenerator(config.placeholders, storage, fileIndex) { updated ->
+            cache.invalidate(updated.id)
+            cache.invalidate(updated.fileName)
+        }
+    } else {
+        null
+    }
+
+    private val views = if (config.views.enabled) ViewStats(config.views, MAPPER) else null
+
+    private val reconciler = Reconciler(fileIndex, storage)
+    private val snapshots = SnapshotManager(config.backup, fileIndex, storage, MAPPER)
+    private val archives = ArchiveStreamer(storage)
+
+    private val firstRequestServed = AtomicBoolean()
+    private val watcher = FileWatcher("Imagery Config Watcher")
+
+    @Volatile
+    private var signer = UrlSigner.of(config.signedUrls.secret)
 
     private val javalin = Javalin.create {
         it.jsonMapper(JavalinJackson(MAPPER))
         it.showJavalinBanner = false
         it.router.ignoreTrailingSlashes = true
         it.useVirtualThreads = true
-        it.http.brotliAndGzipCompression()
+        if (NativeImage.inImage) {
+            it.http.gzipOnlyCompression()
+        } else {
+            it.http.brotliAndGzipCompression()
+        }
         it.contextResolver.ip = { ctx ->
             ctx.header(config.addressHeader) ?: ctx.req().remoteAddr
         }
     }
 
     init {
-        storageDir.createDirectories()
+        usage.attach(fileIndex, Path(config.indexPath))
+        views?.attach(fileIndex)
 
         javalin.beforeMatched { ctx ->
             logger.info { "Received ${ctx.method()} request from: ${ctx.ip()}:${ctx.port()} for ${ctx.fullUrl()}" }
         }
+        javalin.after {
+            if (firstRequestServed.compareAndSet(false, true)) {
+                logger.info { "Served the first request ${System.currentTimeMillis() - ClassDataSharing.launchStart} ms after launch" }
+            }
+        }
         javalin.get("/{id}", ::serveUploadedFile)
-        if (authHandler.usersConfig.users.isEmpty()) {
+        if (authHandler.users.isEmpty()) {
             authHandler.createUser("user")
         }
-        javalin.beforeMatched("/upload") { ctx ->
-            if (ctx.routeRoles().contains(Roles.PRIVATE)) {
+        javalin.beforeMatched { ctx ->
+            val roles = ctx.routeRoles()
+            if (roles.contains(Roles.PRIVATE) || roles.contains(Roles.ADMIN)) {
                 // check auth header
                 val token = ctx.header("Authorization") ?: throw ForbiddenResponse()
-                if (!authHandler.isAuthorized(token)) {
+                val user = authHandler.getUserByToken(token) ?: throw ForbiddenResponse()
+                if (roles.contains(Roles.ADMIN) && !user.admin) {
                     throw ForbiddenResponse()
                 }
             }
         }
         javalin.post("/upload", ::handleFileUpload, Roles.PRIVATE)
+        javalin.post("/upload/batch", ::handleBatchUpload, Roles.PRIVATE)
+        javalin.post("/upload/negotiate", ::handleUploadNegotiation, Roles.PRIVATE)
+        javalin.post("/upload/sessions", ::handleCreateUploadSession, Roles.PRIVATE)
+        javalin.get("/upload/sessions/{session}", ::handleUploadSessionStatus, Roles.PRIVATE)
+        javalin.put("/upload/sessions/{session}", ::handleUploadChunk, Roles.PRIVATE)
+        javalin.post("/upload/sessions/{session}/complete", ::handleCompleteUploadSession, Roles.PRIVATE)
+        javalin.delete("/upload/sessions/{session}", ::handleAbortUploadSession, Roles.PRIVATE)
+        javalin.post("/files/metadata", ::handleMetadataLookup, Roles.PRIVATE)
+        javalin.post("/files/archive", ::handleArchiveDownload, Roles.PRIVATE)
+        javalin.get("/users/me/uploads", ::handleUserUploads, Roles.PRIVATE)
+        javalin.post("/{id}/link", ::handleMintLink, Roles.PRIVATE)
+        javalin.delete("/{id}", ::handleFileDelete, Roles.PRIVATE)
+        javalin.delete("/{id}/del", ::handleFileDelete, Roles.PRIVATE)
+        javalin.put("/internal/cluster/{id}", ::handleClusterTransfer)
+        javalin.get("/admin/scrubber", ::handleScrubberStatus, Roles.ADMIN)
+        javalin.post("/admin/reconcile", ::handleReconcile, Roles.ADMIN)
+        javalin.get("/admin/reconcile", ::handleReconcileStatus, Roles.ADMIN)
+        javalin.post("/admin/snapshots", ::handleSnapshot, Roles.ADMIN)
+        javalin.get("/admin/snapshots", ::handleSnapshotStatus, Roles.ADMIN)
+        javalin.get("/admin/views", ::handleTrending, Roles.ADMIN)
+        javalin.get("/admin/views/{id}", ::handleViews, Roles.ADMIN)
     }
 
+    /**
+     * Uploads a single file and answers with its result, the response upload tools like ShareX expect.
+     */
     private fun handleFileUpload(ctx: Context) {
-        val file = ctx.uploadedFiles("file").firstOrNull() ?: throw BadRequestResponse()
+        upload(ctx, "/upload", batch = false)
+    }
 
-        val id = getRandomString()
-        val fileName = id + file.extension()
-        val filePath = storageDir.resolve(fileName)
-        filePath.outputStream().use {
-            file.content().copyTo(it)
+    /**
+     * Uploads every file of the request and answers with an array of their results, in request order.
+     */
+    private fun handleBatchUpload(ctx: Context) {
+        upload(ctx, "/upload/batch", batch = true)
+    }
+
+    private fun upload(ctx: Context, path: String, batch: Boolean) {
+        if (redirectWhileDraining(ctx, path)) {
+            return
         }
-        val token = ctx.header("Authorization") ?: throw ForbiddenResponse()
+        val event = UploadEvent()
+        val timer = phaseTimer(event)
+        event.begin()
+        val account = currentAccount(ctx)
+        // the multipart body is only read by uploadedFiles, so over-quota users are turned away before that
+        usage.check(account, ctx.contentLength().toLong())
+        event.auth = timer.mark("auth")
+
+        val files = ctx.uploadedFiles("file").ifEmpty { throw BadRequestResponse() }
+        if (!batch && files.size != 1) {
+            throw BadRequestResponse("Send several files to /upload/batch")
+        }
+        // again with the real sizes, a chunked request doesn't declare its length, and counting every file
+        usage.check(account, files.sumOf { it.size() }, files.size)
+        val user = account.username
+        val signedOnly = ctx.queryParam("signed").toBoolean()
+        val expiresIn = linkExpiry(ctx, signedOnly)
+        val declaredHash = declaredHash(ctx)
+        if (declaredHash != null && files.size != 1) {
+            throw BadRequestResponse("A declared hash only applies to a single file")
+        }
+        event.parse = timer.mark("parse")
+
+        val uploads = files.map { file ->
+            CompletableFuture.supplyAsync({
+                val id = generateId()
+                val fileName = id + file.extension()
+                val analysis = AnalyzingInputStream(file.content()).use {
+                    storage.put(fileName, it, file.size())
+                    it.analysis()
+                }
+                if (declaredHash != null && declaredHash != analysis.sha256) {
+                    storage.delete(fileName)
+                    throw BadRequestResponse("The file does not match its declared hash")
+                }
+                newUploadedFile(id, user, fileName, file.filename(), file.extension(), analysis, signedOnly)
+            }, uploadExecutor)
+        }
+        val uploadedFiles = try {
+            CompletableFuture.allOf(*uploads.toTypedArray()).join()
+            uploads.map { it.join() }
+        } catch (e: CompletionException) {
+            // don't leave the files that did make it behind without an index entry
+            uploads.filter { !it.isCompletedExceptionally }.forEach { storage.delete(it.join().fileName) }
+            throw e.cause ?: e
+        }
+        event.write = timer.mark("write")
+
+        fileIndex.putAll(uploadedFiles)
+        uploadedFiles.forEach { cache.put(it.fileName, it) }
+        uploadedFiles.forEach { placeholders?.submit(it) }
+        usage.recordUploads(user, uploadedFiles.size)
+        event.index = timer.mark("index")
+
+        serverTiming(ctx, timer)
+        event.end()
+        if (event.shouldCommit()) {
+            event.user = user
+            event.files = uploadedFiles.size
+            event.bytes = uploadedFiles.sumOf { it.size }
+            event.commit()
+        }
+
+        val results = uploadedFiles.map { resultOf(it, expiresIn) }
+        ctx.json(mapOf("data" to if (batch) results else results.single()))
+    }
+
+    /**
+     * Creates an upload from bytes that are already stored, if the declared hash and size match some.
+     * Otherwise answers 404, and the client sends the file as a regular upload declaring the same hash.
+     */
+    private fun handleUploadNegotiation(ctx: Context) {
+        if (redirectWhileDraining(ctx, "/upload/negotiate")) {
+            return
+        }
+        val account = currentAccount(ctx)
+        val request = ctx.bodyAsClass(UploadNegotiationRequest::class.java)
+        val signedOnly = ctx.queryParam("signed").toBoolean()
+        val expiresIn = linkExpiry(ctx, signedOnly)
+        usage.check(account, request.size)
+
+        val sha256 = request.sha256.lowercase()
+        val stored = fileIndex.blobs.find(sha256, request.size, account.username)
+            ?: throw NotFoundResponse("No stored file matches, upload it")
+        val id = generateId()
+        val extension = extensionOf(request.fileName)
+        val uploadedFile = fileIndex.blobs.withLock(stored.storageKey) {
+            // the last upload sharing these bytes may have been deleted since the lookup
+            if (!fileIndex.blobs.isReferenced(stored.storageKey)) {
+                throw NotFoundResponse("No stored file matches, upload it")
+            }
+            stored.copy(
+                id = id,
+                user = account.username,
+                uploadedDate = System.currentTimeMillis(),
+                fileName = id + extension,
+                originalFileName = request.fileName,
+                extension = extension,
+                signedOnly = signedOnly,
+                blob = stored.storageKey,
+            ).also(fileIndex::put)
+        }
+        cache.put(uploadedFile.fileName, uploadedFile)
+        usage.recordUploads(account.username, 1)
+        ctx.json(mapOf("data" to resultOf(uploadedFile, expiresIn)))
+    }
+
+    private fun declaredHash(ctx: Context): String? = ctx.header(CONTENT_SHA256_HEADER)?.lowercase()
+
+    private fun handleCreateUploadSession(ctx: Context) {
+        if (redirectWhileDraining(ctx, "/upload/sessions")) {
+            return
+        }
+        val account = currentAccount(ctx)
+        val request = ctx.bodyAsClass(UploadSessionRequest::class.java)
+        val session = uploadSessions.create(account.username, request.fileName, request.size) { reservedBytes, sessions ->
+            usage.check(account, reservedBytes, sessions)
+        }
+        ctx.status(HttpStatus.CREATED).json(mapOf("data" to session.status()))
+    }
 
-        val uploadedFile = UploadedFile(
-            id,
-            authHandler.getUserByToken(token)?.username ?: "Unknown",
-            System.currentTimeMillis(),
-            fileName,
-            file.filename(),
-            file.extension(),
-            MimeTypes.getDefaultMimeByExtension(file.extension()),
+    private fun handleUploadSessionStatus(ctx: Context) {
+        ctx.json(mapOf("data" to uploadSession(ctx).status()))
+    }
+
+    private fun handleUploadChunk(ctx: Context) {
+        val session = uploadSession(ctx)
+        val offset = ctx.queryParam("offset")?.toLongOrNull() ?: throw BadRequestResponse("Missing chunk offset")
+        session.write(offset, ctx.bodyInputStream())
+        ctx.json(mapOf("data" to session.status()))
+    }
+
+    private fun handleCompleteUploadSession(ctx: Context) {
+        val session = uploadSession(ctx)
+        val signedOnly = ctx.queryParam("signed").toBoolean()
+        val expiresIn = linkExpiry(ctx, signedOnly)
+        val declaredHash = declaredHash(ctx)
+        session.seal()
+
+        val id = generateId()
+        val extension = extensionOf(session.fileName)
+        val fileName = id + extension
+        val analysis = try {
+            // chunks arrive out of order, so the file can only be analyzed once it is complete
+            UploadAnalysis.of(session.path).also { storage.putFile(fileName, session.path) }
+        } finally {
+            uploadSessions.remove(session)
+        }
+        if (declaredHash != null && declaredHash != analysis.sha256) {
+            storage.delete(fileName)
+            throw BadRequestResponse("The file does not match its declared hash")
+        }
+
+        val uploadedFile = newUploadedFile(id, session.user, fileName, session.fileName, extension, analysis, signedOnly)
+        fileIndex.put(uploadedFile)
+        cache.put(fileName, uploadedFile)
+        placeholders?.submit(uploadedFile)
+        usage.recordUploads(session.user, 1)
+        ctx.json(mapOf("data" to resultOf(uploadedFile, expiresIn)))
+    }
+
+    private fun handleAbortUploadSession(ctx: Context) {
+        uploadSessions.remove(uploadSession(ctx))
+        ctx.status(HttpStatus.NO_CONTENT)
+    }
+
+    private fun uploadSession(ctx: Context): UploadSessionManager.UploadSession =
+        uploadSessions[ctx.pathParam("session"), currentUser(ctx)] ?: throw NotFoundResponse("Unknown upload session")
+
+    private fun newUploadedFile(
+        id: String,
+        user: String,
+        fileName: String,
+        originalFileName: String,
+        extension: String,
+        analysis: UploadAnalysis,
+        signedOnly: Boolean,
+    ) = UploadedFile(
+        id,
+        user,
+        System.currentTimeMillis(),
+        fileName,
+        originalFileName,
+        extension,
+        analysis.mimeType ?: FileSniffer.typeOfUnrecognized(extension),
+        analysis.size,
+        analysis.sha256,
+        analysis.crc32,
+        analysis.width,
+        analysis.height,
+        signedOnly,
+    )
+
+    /**
+     * Describes [uploadedFile], with a link signed for [expiresIn] seconds if given. Uploads only served through
+     * signed links get that link as their URL.
+     */
+    private fun resultOf(uploadedFile: UploadedFile, expiresIn: Long? = null): ImageLookupResult {
+        val url = "${config.baseUrl}/${uploadedFile.fileName}"
+        val expires = expiresIn?.let { System.currentTimeMillis() / 1000 + it }
+        val signedUrl = expires?.let { "$url?expires=$it&signature=${signer.sign(uploadedFile.id, it)}" }
+        return ImageLookupResult(
+            signedUrl?.takeIf { uploadedFile.signedOnly } ?: url,
+            "$url/del",
+            mimeType = uploadedFile.mimeType,
+            width = uploadedFile.width,
+            height = uploadedFile.height,
+            size = uploadedFile.size,
+            sha256 = uploadedFile.sha256,
+            blurHash = uploadedFile.blurHash,
+            dominantColor = uploadedFile.dominantColor,
+            signedUrl = signedUrl,
+            expires = expires,
         )
+    }
+
+    /**
+     * The requested link lifetime in seconds, capped to the configured maximum. Falls back to the default
+     * when a link is [required], otherwise `null` means no link was asked for.
+     */
+    private fun linkExpiry(ctx: Context, required: Boolean): Long? {
+        val requested = ctx.queryParam("expiresIn")?.let {
+            it.toLongOrNull()?.takeIf { seconds -> seconds > 0 } ?: throw BadRequestResponse("Invalid link expiry")
+        }
+        val expiresIn = requested ?: if (required) config.signedUrls.defaultExpirySeconds else return null
+        return expiresIn.coerceAtMost(config.signedUrls.maxExpirySeconds)
+    }
 
-        scheduler.execute {
-            dataNode.node(id).set(uploadedFile)
-            dataLoader.save(dataNode) // TODO: probably shouldn't be done during the http request
+    private fun handleMintLink(ctx: Context) {
+        val uploadedFile = lookup(ctx.pathParam("id")) ?: throw FileNotFoundResponse()
+        // admins release quarantined orphans this way
+        if (uploadedFile.user != currentUser(ctx) && !currentAccount(ctx).admin) {
+            throw ForbiddenResponse()
         }
+        ctx.json(mapOf("data" to resultOf(uploadedFile, linkExpiry(ctx, true))))
+    }
+
+    private fun currentAccount(ctx: Context): User {
+        val token = ctx.header("Authorization") ?: throw ForbiddenResponse()
+        return authHandler.getUserByToken(token) ?: throw ForbiddenResponse()
+    }
+
+    private fun currentUser(ctx: Context): String = currentAccount(ctx).username
 
-        cache.put(fileName, FileCacheEntry(uploadedFile, filePath))
-        ctx.json(mapOf("data" to ImageLookupResult("${config.baseUrl}/$fileName")))
+    /**
+     * Sends uploads to another node while this one is leaving the cluster, returning whether it did.
+     */
+    private fun redirectWhileDraining(ctx: Context, path: String): Boolean {
+        if (cluster == null || !cluster.draining) {
+            return false
+        }
+        val target = cluster.anyRemoteUrl() ?: throw ServiceUnavailableResponse()
+        ctx.redirect("$target$path", HttpStatus.TEMPORARY_REDIRECT)
+        return true
     }
 
     private fun serveUploadedFile(ctx: Context) {
-        val id = ctx.pathParam("id")
-        cache.get(id) {
-            val node = dataNode.node(id)
-            if (node != null && !node.virtual()) {
-                val uploadedNode = node.get(UploadedFile::class.java)!!
-                FileCacheEntry(uploadedNode, storageDir.resolve(uploadedNode.fileName))
-            } else {
-                // cry
-                throw FileNotFoundResponse()
+        val event = ServeEvent()
+        val timer = phaseTimer(event)
+        event.begin()
+        // exceptions are only mapped to their status after this returns, so it has to be taken from them here
+        var status: Int? = null
+        try {
+            serveFile(ctx, timer, event)
+        } catch (e: HttpResponseException) {
+            status = e.status
+            throw e
+        } catch (e: Exception) {
+            status = HttpStatus.INTERNAL_SERVER_ERROR.code
+            throw e
+        } finally {
+            serverTiming(ctx, timer)
+            event.end()
+            if (event.shouldCommit()) {
+                event.name = ctx.pathParam("id")
+                event.status = status ?: ctx.statusCode()
+                event.commit()
             }
-        }?.also { (uploadedFile, path) ->
-            ctx.result(path.inputStream())
-                .contentType(ContentType.getContentTypeByExtension(uploadedFile.extension) ?: ContentType.IMAGE_PNG)
-        } ?: throw FileNotFoundResponse()
+        }
+    }
+
+    private fun serveFile(ctx: Context, timer: PhaseTimer, event: ServeEvent) {
+        val name = ctx.pathParam("id")
+        val expires = ctx.queryParam("expires")
+        val signature = ctx.queryParam("signature")
+        // signed links are checked from the request alone, so forged ones never reach the cache or storage
+        val signed = expires != null || signature != null
+        if (signed && !signer.verify(idOf(name), expires, signature)) {
+            throw ForbiddenResponse("This link is invalid or has expired")
+        }
+
+        val uploadedFile = lookup(name)?.takeIf { signed || !it.signedOnly }
+        event.lookup = timer.mark("lookup")
+        if (uploadedFile == null) {
+            ctx.redirect(clusterLocation(ctx, name) ?: throw FileNotFoundResponse(), HttpStatus.TEMPORARY_REDIRECT)
+            return
+        }
+        // uploads never change, so they can be cached forever and revalidated from metadata alone
+        val etag = etagOf(uploadedFile)
+        ctx.header(Header.ETAG, etag)
+        ctx.header(Header.LAST_MODIFIED, HTTP_DATE.format(Instant.ofEpochMilli(uploadedFile.uploadedDate)))
+        if (signed) {
+            // verified above, so the expiry parses
+            val remaining = (expires!!.toLong() - System.currentTimeMillis() / 1000).coerceAtLeast(0)
+            ctx.header(Header.CACHE_CONTROL, "private, max-age=$remaining")
+        } else {
+            ctx.header(Header.CACHE_CONTROL, "public, max-age=31536000, immutable")
+        }
+        if (notModified(ctx, etag, uploadedFile.uploadedDate)) {
+            ctx.status(HttpStatus.NOT_MODIFIED)
+            return
+        }
+
+        // the type was sniffed from the content on upload, don't let browsers second-guess it
+        ctx.contentType(uploadedFile.mimeType)
+        ctx.header("X-Content-Type-Options", "nosniff")
+        // uploads from before types were sniffed may still be typed as active content, never run it on this origin
+        ctx.header("Content-Security-Policy", "sandbox")
+        ctx.header(Header.ACCEPT_RANGES, "bytes")
+
+        val range = ctx.header(Header.RANGE)?.let { RANGE.matchEntire(it) }
+            ?.takeIf { it.groupValues[1].isNotEmpty() || it.groupValues[2].isNotEmpty() }
+        if (range == null) {
+            ctx.result(storage.get(uploadedFile.storageKey) ?: throw FileNotFoundResponse())
+            views?.record(uploadedFile.id)
+            event.storage = timer.mark("storage")
+            event.size = uploadedFile.size
+            return
+        }
+
+        val size = storage.size(uploadedFile.storageKey) ?: throw FileNotFoundResponse()
+        val (startGroup, endGroup) = range.destructured
+        val start = if (startGroup.isEmpty()) size - endGroup.toLong() else startGroup.toLong()
+        val end = if (startGroup.isEmpty() || endGroup.isEmpty()) size - 1 else minOf(endGroup.toLong(), size - 1)
+        if (start < 0 || start > end) {
+            ctx.header(Header.CONTENT_RANGE, "bytes */$size")
+            ctx.status(HttpStatus.RANGE_NOT_SATISFIABLE)
+            return
+        }
+
+        ctx.status(HttpStatus.PARTIAL_CONTENT)
+        ctx.header(Header.CONTENT_RANGE, "bytes $start-$end/$size")
+        ctx.header(Header.CONTENT_LENGTH, (end - start + 1).toString())
+        ctx.result(storage.getRange(uploadedFile.storageKey, start, end - start + 1) ?: throw FileNotFoundResponse())
+        // a client picking up where a previous range stopped is still on the same view
+        if (start == 0L) {
+            views?.record(uploadedFile.id)
+        }
+        event.storage = timer.mark("storage")
+        event.size = end - start + 1
+    }
+
+    /**
+     * Where else to look for an upload missing here, or `null` if it doesn't exist anywhere.
+     *
+     * Files stay on their previous node until rebalancing moved them, so only a local miss redirects, and an owner
+     * still missing a file sends the request to its previous owner once. That one answers 404 instead of sending
+     * it back.
+     */
+    private fun clusterLocation(ctx: Context, name: String): String? {
+        if (cluster == null || ctx.queryParam(HANDOFF_PARAM) != null) {
+            return null
+        }
+        val id = idOf(name)
+        val query = ctx.queryString()
+        if (!cluster.isLocal(id)) {
+            return cluster.ownerUrl(id)?.let { "$it/$name${query?.let { "?$it" } ?: ""}" }
+        }
+        return cluster.previousOwnerUrl(id)?.let { "$it/$name?${query?.let { "$it&" } ?: ""}$HANDOFF_PARAM=1" }
+    }
+
+    private fun phaseTimer(event: Event): PhaseTimer =
+        if (config.serverTiming || event.isEnabled) PhaseTimer() else PhaseTimer.NONE
+
+    private fun serverTiming(ctx: Context, timer: PhaseTimer) {
+        if (config.serverTiming) {
+            ctx.header("Server-Timing", timer.serverTiming())
+        }
+    }
+
+    private fun etagOf(uploadedFile: UploadedFile): String =
+        "\"${uploadedFile.sha256 ?: "${uploadedFile.id}-${uploadedFile.uploadedDate}"}\""
+
+    private fun notModified(ctx: Context, etag: String, uploadedDate: Long): Boolean {
+        val ifNoneMatch = ctx.header(Header.IF_NONE_MATCH)
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            return ifNoneMatch.split(',').any { it.trim().removePrefix("W/") == etag || it.trim() == "*" }
+        }
+        val ifModifiedSince = ctx.header(Header.IF_MODIFIED_SINCE) ?: return false
+        val since = try {
+            Instant.from(HTTP_DATE.parse(ifModifiedSince))
+        } catch (e: DateTimeException) {
+            return false
+        }
+        return uploadedDate / 1000 <= since.epochSecond
+    }
+
+    /**
+     * Streams the metadata of every requested id, reporting unknown ones inline. Anything derived from the content
+     * of other users' signed-only uploads is left out, since only a signed link grants access to it.
+     */
+    private fun handleMetadataLookup(ctx: Context) {
+        val user = currentUser(ctx)
+        val names = ctx.bodyAsClass(Array<String>::class.java)
+        if (names.size > MAX_METADATA_LOOKUP) {
+            throw BadRequestResponse("At most $MAX_METADATA_LOOKUP ids can be looked up at once")
+        }
+
+        ctx.contentType(ContentType.APPLICATION_JSON)
+        MAPPER.factory.createGenerator(ctx.outputStream()).use { generator ->
+            generator.writeStartObject()
+            generator.writeArrayFieldStart("data")
+            for (name in names) {
+                val uploadedFile = cache.getIfPresent(name) ?: fileIndex[idOf(name)]
+                val metadata = uploadedFile?.let { metadataOf(it, redacted = it.signedOnly && it.user != user) }
+                MAPPER.writeValue(generator, metadata ?: MissingFile(name))
+            }
+            generator.writeEndArray()
+            generator.writeEndObject()
+        }
+    }
+
+    /**
+     * Streams a ZIP archive of the requested ids. Unknown ids, and signed-only uploads of other users, are left out.
+     */
+    private fun handleArchiveDownload(ctx: Context) {
+        val names = ctx.bodyAsClass(Array<String>::class.java)
+        if (names.size > MAX_ARCHIVE_FILES) {
+            throw BadRequestResponse("At most $MAX_ARCHIVE_FILES files can be archived at once")
+        }
+        val user = currentUser(ctx)
+        // several names can resolve to the same upload, which may only appear once in the archive
+        val files = names.mapNotNull { cache.getIfPresent(it) ?: fileIndex[idOf(it)] }
+            .distinctBy { it.id }
+            .filter { !it.signedOnly || it.user == user }
+        if (files.isEmpty()) {
+            throw FileNotFoundResponse()
+        }
+
+        ctx.contentType("application/zip")
+        ctx.header(Header.CONTENT_DISPOSITION, "attachment; filename=\"imagery.zip\"")
+        archives.write(files, ctx.outputStream())
+    }
+
+    private fun handleUserUploads(ctx: Context) {
+        val limit = (ctx.queryParam("limit")?.toIntOrNull() ?: DEFAULT_PAGE_SIZE).coerceIn(1, MAX_PAGE_SIZE)
+        val page = try {
+            fileIndex.byUser.page(currentUser(ctx), ctx.queryParam("cursor"), limit)
+        } catch (e: IllegalArgumentException) {
+            throw BadRequestResponse(e.message ?: "Malformed cursor")
+        }
+        val files = page.ids.mapNotNull { fileIndex[it] }.map { metadataOf(it) }
+        ctx.json(mapOf("data" to files, "next" to page.next))
+    }
+
+    private fun handleFileDelete(ctx: Context) {
+        val name = ctx.pathParam("id")
+        val uploadedFile = lookup(name) ?: throw FileNotFoundResponse()
+        if (uploadedFile.user != currentUser(ctx)) {
+            throw ForbiddenResponse()
+        }
+
+        fileIndex.blobs.withLock(uploadedFile.storageKey) {
+            fileIndex.remove(uploadedFile.id)
+            // other uploads of the same content keep the bytes alive
+            if (!fileIndex.blobs.isReferenced(uploadedFile.storageKey)) {
+                storage.delete(uploadedFile.storageKey)
+            }
+        }
+        cache.invalidate(name)
+        cache.invalidate(uploadedFile.fileName)
+        ctx.status(HttpStatus.NO_CONTENT)
+    }
+
+    /**
+     * @param redacted whether to leave out the size, hash and preview of the content
+     */
+    private fun metadataOf(uploadedFile: UploadedFile, redacted: Boolean = false) = FileMetadata(
+        uploadedFile.id,
+        resultOf(uploadedFile).url,
+        uploadedFile.user,
+        uploadedFile.uploadedDate,
+        uploadedFile.fileName,
+        uploadedFile.originalFileName,
+        uploadedFile.extension,
+        uploadedFile.mimeType,
+        if (redacted) -1 else uploadedFile.size.takeIf { it >= 0 } ?: storage.size(uploadedFile.storageKey) ?: -1,
+        uploadedFile.sha256.takeUnless { redacted },
+        uploadedFile.width,
+        uploadedFile.height,
+        uploadedFile.blurHash.takeUnless { redacted },
+        uploadedFile.dominantColor.takeUnless { redacted },
+    )
+
+    private fun handleTrending(ctx: Context) {
+        val views = views ?: throw NotFoundResponse("View counting is not enabled")
+        val limit = (ctx.queryParam("limit")?.toIntOrNull() ?: DEFAULT_PAGE_SIZE).coerceIn(1, MAX_PAGE_SIZE)
+        val minutes = ctx.queryParam("minutes")?.toIntOrNull() ?: config.views.windowMinutes
+        ctx.json(mapOf("data" to views.trending(limit, minutes)))
+    }
+
+    private fun handleViews(ctx: Context) {
+        val views = views ?: throw NotFoundResponse("View counting is not enabled")
+        val uploadedFile = lookup(ctx.pathParam("id")) ?: throw FileNotFoundResponse()
+        ctx.json(mapOf("data" to views.views(uploadedFile.id)))
+    }
+
+    private fun handleScrubberStatus(ctx: Context) {
+        val scrubber = scrubber ?: throw NotFoundResponse("The scrubber is not enabled")
+        ctx.json(mapOf("data" to scrubber.status()))
+    }
+
+    private fun handleReconcile(ctx: Context) {
+        if (!reconciler.start(scheduler)) {
+            throw ConflictResponse("A reconciliation is already running")
+        }
+        ctx.status(HttpStatus.ACCEPTED).json(mapOf("data" to mapOf("running" to true)))
+    }
+
+    private fun handleReconcileStatus(ctx: Context) {
+        ctx.json(mapOf("data" to mapOf("running" to reconciler.isRunning, "lastReport" to reconciler.lastReport)))
+    }
+
+    private fun handleSnapshot(ctx: Context) {
+        val number = snapshots.start(scheduler) ?: throw ConflictResponse("A snapshot is already being written")
+        ctx.status(HttpStatus.ACCEPTED).json(mapOf("data" to mapOf("number" to number)))
+    }
+
+    private fun handleSnapshotStatus(ctx: Context) {
+        val status = snapshots.status() ?: throw NotFoundResponse("No snapshot was started since the server started")
+        ctx.json(mapOf("data" to status))
+    }
+
+    private fun handleClusterTransfer(ctx: Context) {
+        if (cluster == null || !cluster.isAuthorized(ctx.header(ClusterManager.SECRET_HEADER))) {
+            throw ForbiddenResponse()
+        }
+        val metadata = ctx.header(ClusterManager.METADATA_HEADER) ?: throw BadRequestResponse()
+        val uploadedFile = cluster.decodeMetadata(metadata)
+        if (uploadedFile.id != ctx.pathParam("id") || uploadedFile.fileName != uploadedFile.id + uploadedFile.extension) {
+            throw BadRequestResponse()
+        }
+
+        // shared bytes are sent along with every upload referencing them, so the owner stores its own copy
+        storage.put(uploadedFile.fileName, ctx.bodyInputStream(), ctx.contentLength().toLong())
+        fileIndex.put(uploadedFile.copy(blob = null))
+        ctx.status(HttpStatus.NO_CONTENT)
+    }
+
+    /**
+     * Looks up an upload by the name it is served under, its id followed by its extension.
+     */
+    private fun lookup(name: String): UploadedFile? = cache.get(name) {
+        val event = CacheMissEvent()
+        event.begin()
+        val uploadedFile = fileIndex[idOf(name)]
+        event.end()
+        if (event.shouldCommit()) {
+            event.name = name
+            event.found = uploadedFile != null
+            event.commit()
+        }
+        uploadedFile
+    }
+
+    private fun warmUp(name: String) {
+        val uploadedFile = lookup(name) ?: return
+        if (config.metadataCache.warmupBytes) {
+            storage.get(uploadedFile.storageKey)?.use { it.transferTo(OutputStream.nullOutputStream()) }
+        }
+    }
+
+    private fun createPrimaryStorage(): StorageBackend {
+        return when (config.storage.type) {
+            "local" -> LocalStorageBackend(Path(config.storagePath))
+            "s3" -> CachingStorageBackend(
+                S3StorageBackend(config.storage.s3),
+                Path(config.storage.cachePath),
+                config.storage.cacheMaxBytes,
+            )
+            else -> throw IllegalArgumentException("Unknown storage type ${config.storage.type}")
+        }
+    }
+
+    private fun withSegments(backend: StorageBackend): StorageBackend {
+        val segments = config.storage.segments
+        if (!segments.enabled) {
+            return backend
+        }
+        return SegmentStorageBackend(
+            backend,
+            Path(segments.path),
+            segments.smallFileThreshold,
+            segments.segmentSize,
+            segments.compactionRatio,
+        )
+    }
+
+    /**
+     * Publishes the settings of a reloaded configuration that are read on every use. The others keep their current
+     * values, since what was built from them at startup would no longer match, and take effect on the next restart.
+     */
+    fun updateConfig(updated: Config) {
+        val previous = config
+        // membership changes apply right away, moving the files whose owner changed
+        val clusterReloadable = cluster != null && updated.cluster.enabled &&
+            updated.cluster.nodeId == previous.cluster.nodeId && updated.cluster.nodes.isNotEmpty()
+        val applied = previous.copy(
+            baseUrl = updated.baseUrl,
+            pathLength = updated.pathLength,
+            addressHeader = updated.addressHeader,
+            serverTiming = updated.serverTiming,
+            storage = previous.storage.copy(cacheMaxBytes = updated.storage.cacheMaxBytes),
+            signedUrls = updated.signedUrls,
+            cluster = if (clusterReloadable) updated.cluster else previous.cluster,
+        )
+        val ignored = changedKeys(MAPPER.valueToTree(applied), MAPPER.valueToTree(updated))
+        if (ignored.isNotEmpty()) {
+            logger.warn { "Changes to ${ignored.joinToString()} only take effect after a restart" }
+        }
+        if (applied == previous) {
+            return
+        }
+        configRef.set(applied)
+
+        if (previous.storage.cacheMaxBytes != applied.storage.cacheMaxBytes && primaryStorage is CachingStorageBackend) {
+            primaryStorage.resize(applied.storage.cacheMaxBytes)
+        }
+        if (previous.signedUrls.secret != applied.signedUrls.secret) {
+            signer = UrlSigner.of(applied.signedUrls.secret)
+        }
+        if (previous.cluster != applied.cluster) {
+            cluster?.reconfigure(applied.cluster)
+            scheduler.execute(::rebalanceCluster)
+        }
+        logger.info { "Reloaded configuration" }
+    }
+
+    /**
+     * The keys, as written in the configuration file, whose values differ between [before] and [after].
+     */
+    private fun changedKeys(before: JsonNode, after: JsonNode, path: String = ""): List<String> = when {
+        before == after -> emptyList()
+        !before.isObject || !after.isObject -> listOf(path)
+        else -> after.fieldNames().asSequence().toList().flatMap { name ->
+            val key = NamingSchemes.LOWER_CASE_DASHED.coerce(name)
+            changedKeys(before.path(name), after.path(name), if (path.isEmpty()) key else "$path.$key")
+        }
+    }
+
+    private fun reloadConfig(path: Path) {
+        val updated = try {
+            ConfigLoader.load(path)
+        } catch (e: Exception) {
+            logger.error(e) { "Could not reload configuration from $path, keeping the current one" }
+            return
+        }
+        updateConfig(updated)
     }
 
     fun start() {
         logger.info { "Starting HTTP server at port ${config.port}..." }
         javalin.start(config.port)
+        watcher.watch(authHandler.usersPath, authHandler::reload)
+        configPath?.let { path -> watcher.watch(path) { reloadConfig(path) } }
+        schedule("persisting usage", config.quotas.persistIntervalSeconds, TimeUnit.SECONDS, usage::persist)
+        if (storage is SegmentStorageBackend) {
+            schedule("compacting segments", config.storage.segments.compactionIntervalMinutes, TimeUnit.MINUTES, storage::compact)
+        }
+        scheduler.execute { hotSet.warmUp(::warmUp) }
+        schedule("persisting the hot set", config.metadataCache.persistIntervalSeconds, TimeUnit.SECONDS) { hotSet.persist(cache) }
+        views?.let { stats ->
+            schedule("persisting view counts", config.views.persistIntervalSeconds, TimeUnit.SECONDS, stats::persist)
+            schedule("rotating view windows", 10, TimeUnit.SECONDS, stats::rotate)
+        }
+        if (config.reconcileOnStartup) {
+            reconciler.start(scheduler)
+        }
+        scrubber?.start()
+        if (cluster != null) {
+            scheduler.execute(::rebalanceCluster)
+            schedule("rebalancing the cluster", config.cluster.rebalanceIntervalMinutes, TimeUnit.MINUTES, ::rebalanceCluster)
+        }
+    }
+
+    /**
+     * Runs [task] on the maintenance thread every [interval]. A scheduled executor cancels a task for good the
+     * first time it throws, so failures are logged here and the task runs again next time.
+     */
+    private fun schedule(description: String, interval: Long, unit: TimeUnit, task: () -> Unit) {
+        val guarded = Runnable {
+            try {
+                task()
+            } catch (e: Exception) {
+                logger.error(e) { "Failed $description, trying again in $interval ${unit.name.lowercase()}" }
+            }
+        }
+        maintenance.scheduleWithFixedDelay(guarded, interval, interval, unit)
+    }
+
+    private fun rebalanceCluster() {
+        cluster?.rebalance {
+            cache.invalidate(it.id)
+            cache.invalidate(it.fileName)
+        }
+    }
+
+    /**
+     * Restores the latest snapshot into storage and the index, without starting the server.
+     */
+    fun restore() {
+        snapshots.restore()
+        usage.persist()
+        storage.close()
     }
 
     fun stop() {
         logger.info { "Shutting down..." }
         javalin.stop()
+        watcher.close()
+        maintenance.shutdownNow()
+        // the index first, so the usage file isn't older than it and gets used as it is on the next start
+        fileIndex.save()
+        usage.persist()
+        hotSet.persist(cache)
+        views?.persist()
+        scrubber?.close()
+        placeholders?.close()
+        storage.close()
     }
 
     private fun getRandomString(length: Int = config.pathLength): String =
         generateSequence(ALLOWED_CHARS::random).take(length).joinToString("")
 
+    /**
+     * Generates an upload id, one owned by this node when running in a cluster.
+     */
+    private fun generateId(): String {
+        if (cluster?.draining == true) {
+            throw ServiceUnavailableResponse("This node is leaving the cluster")
+        }
+        while (true) {
+            val id = getRandomString()
+            if (cluster == null || cluster.isLocal(id)) {
+                return id
+            }
+        }
+    }
+
+    private fun idOf(name: String): String = name.substringBefore('.')
+
+    private fun extensionOf(fileName: String): String {
+        val extension = fileName.substringAfterLast('.', "").filter(Char::isLetterOrDigit).take(16)
+        return if (extension.isEmpty()) "" else ".$extension"
+    }
+
     companion object {
         private val MAPPER = jacksonObjectMapper()
         private val ALLOWED_CHARS = ('A'..'Z') + ('a'..'z') + ('0'..'9')
+        private const val CONTENT_SHA256_HEADER = "X-Content-SHA256"
+        private const val HANDOFF_PARAM = "handoff"
+        private const val MAX_METADATA_LOOKUP = 1000
+        private const val MAX_ARCHIVE_FILES = 1000
+        private const val DEFAULT_PAGE_SIZE = 50
+        private const val MAX_PAGE_SIZE = 200
+        private val HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC)
+        private val RANGE = Regex("bytes=(\\d*)-(\\d*)")
     }
-
-    data class FileCacheEntry(val file: UploadedFile, val path: Path)
 }
@@ -0,0 +1,104 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.analysis
+
+import dev.mizule.imagery.app.util.Hashing
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.util.zip.CRC32
+
+/**
+ * Works out what an upload is while it streams to storage: its real type, image dimensions, size and checksums,
+ * all from the bytes passing through, so the stored file never has to be read a second time.
+ */
+class AnalyzingInputStream(input: InputStream) : FilterInputStream(input) {
+    private val digest = Hashing.sha256()
+    private val crc = CRC32()
+    private val single = ByteArray(1)
+    private val header = ByteArray(FileSniffer.HEADER_SIZE)
+    private var headerLength = 0
+    private var size = 0L
+
+    override fun read(): Int {
+        val read = super.read()
+        if (read != -1) {
+            single[0] = read.toByte()
+            update(single, 0, 1)
+        }
+        return read
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = super.read(b, off, len)
+        if (read > 0) {
+            update(b, off, read)
+        }
+        return read
+    }
+
+    /**
+     * Reads and discards, so skipped bytes still count towards the size and checksums.
+     */
+    override fun skip(n: Long): Long {
+        if (n <= 0) {
+            return 0
+        }
+        val buffer = ByteArray(minOf(n, SKIP_BUFFER_SIZE.toLong()).toInt())
+        var remaining = n
+        while (remaining > 0) {
+            val read = read(buffer, 0, minOf(remaining, buffer.size.toLong()).toInt())
+            if (read < 0) {
+                break
+            }
+            remaining -= read
+        }
+        return n - remaining
+    }
+
+    override fun markSupported(): Boolean = false
+
+    private fun update(b: ByteArray, off: Int, len: Int) {
+        digest.update(b, off, len)
+        crc.update(b, off, len)
+        if (headerLength < header.size) {
+            val copied = minOf(len, header.size - headerLength)
+            System.arraycopy(b, off, header, headerLength, copied)
+            headerLength += copied
+        }
+        size += len
+    }
+
+    /**
+     * The analysis of everything read so far, which is the whole upload once it has been consumed.
+     */
+    fun analysis(): UploadAnalysis {
+        val sniffed = FileSniffer.sniff(header, headerLength)
+        return UploadAnalysis(sniffed?.mimeType, sniffed?.width, sniffed?.height, size, Hashing.hex(digest), crc.value)
+    }
+
+    private companion object {
+        const val SKIP_BUFFER_SIZE = 8192
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.analysis
+
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.floor
+import kotlin.math.pow
+import kotlin.math.roundToInt
+import kotlin.math.sign
+
+/**
+ * Encodes images as [BlurHash](https://blurha.sh) strings, a few dozen characters that decode into a blurred
+ * preview of the image.
+ */
+object BlurHash {
+    private const val CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~"
+
+    /**
+     * Encodes the [width] by [height] RGB [pixels], row by row, with [componentsX] by [componentsY] components.
+     */
+    fun encode(pixels: IntArray, width: Int, height: Int, componentsX: Int = 4, componentsY: Int = 3): Result {
+        require(componentsX in 1..9 && componentsY in 1..9) { "BlurHash supports 1 to 9 components per axis" }
+        val cosX = Array(componentsX) { i -> DoubleArray(width) { x -> cos(PI * i * x / width) } }
+        val cosY = Array(componentsY) { j -> DoubleArray(height) { y -> cos(PI * j * y / height) } }
+        val linear = Array(3) { channel -> FloatArray(pixels.size) { srgbToLinear(pixels[it] shr (16 - 8 * channel) and 0xff) } }
+
+        val factors = Array(componentsX * componentsY) { component ->
+            val i = component % componentsX
+            val j = component / componentsX
+            val normalisation = if (i == 0 && j == 0) 1.0 else 2.0
+            val factor = DoubleArray(3)
+            for (y in 0 until height) {
+                for (x in 0 until width) {
+                    val basis = cosX[i][x] * cosY[j][y]
+                    val pixel = y * width + x
+                    for (channel in 0..2) {
+                        factor[channel] += basis * linear[channel][pixel]
+                    }
+                }
+            }
+            DoubleArray(3) { factor[it] * normalisation / (width * height) }
+        }
+
+        val hash = StringBuilder()
+        encodeBase83((componentsX - 1) + (componentsY - 1) * 9, 1, hash)
+        val ac = factors.drop(1)
+        val maximum = if (ac.isEmpty()) {
+            encodeBase83(0, 1, hash)
+            1.0
+        } else {
+            val actualMaximum = ac.maxOf { factor -> factor.maxOf(::abs) }
+            val quantisedMaximum = floor(actualMaximum * 166 - 0.5).toInt().coerceIn(0, 82)
+            encodeBase83(quantisedMaximum, 1, hash)
+            (quantisedMaximum + 1) / 166.0
+        }
+        val dc = factors[0]
+        val average = (linearToSrgb(dc[0]) shl 16) or (linearToSrgb(dc[1]) shl 8) or linearToSrgb(dc[2])
+        encodeBase83(average, 4, hash)
+        for (factor in ac) {
+            val quantised = factor.map { floor(signedSqrt(it / maximum) * 9 + 9.5).toInt().coerceIn(0, 18) }
+            encodeBase83(quantised[0] * 19 * 19 + quantised[1] * 19 + quantised[2], 2, hash)
+        }
+        return Result(hash.toString(), average)
+    }
+
+    private fun encodeBase83(value: Int, length: Int, hash: StringBuilder) {
+        for (digit in length - 1 downTo 0) {
+            hash.append(CHARACTERS[value / 83.0.pow(digit).toInt() % 83])
+        }
+    }
+
+    private fun signedSqrt(value: Double): Double = sign(value) * abs(value).pow(0.5)
+
+    private fun srgbToLinear(value: Int): Float {
+        val v = value / 255f
+        return if (v <= 0.04045f) v / 12.92f else ((v + 0.055f) / 1.055f).pow(2.4f)
+    }
+
+    private fun linearToSrgb(value: Double): Int {
+        val v = value.coerceIn(0.0, 1.0)
+        val srgb = if (v <= 0.0031308) v * 12.92 else 1.055 * v.pow(1 / 2.4) - 0.055
+        return (srgb * 255).roundToInt().coerceIn(0, 255)
+    }
+
+    /**
+     * @param averageColor the average color of the image as `0xRRGGBB`
+     */
+    data class Result(val hash: String, val averageColor: Int)
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.analysis
+
+import org.eclipse.jetty.http.MimeTypes
+import kotlin.math.absoluteValue
+
+/**
+ * Recognizes common upload formats from their leading bytes, and reads image dimensions from their headers
+ * without decoding any pixels.
+ */
+object FileSniffer {
+
+    /**
+     * How many leading bytes [sniff] needs to see. JPEGs with metadata segments larger than this report no dimensions.
+     */
+    const val HEADER_SIZE = 64 * 1024
+
+    data class Sniffed(val mimeType: String, val width: Int? = null, val height: Int? = null)
+
+    fun sniff(header: ByteArray, length: Int = header.size): Sniffed? {
+        val bytes = Bytes(header, minOf(length, header.size))
+        return when {
+            bytes.startsWith(0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A) ->
+                Sniffed("image/png", bytes.int32(16), bytes.int32(20))
+            bytes.startsWith(0xFF, 0xD8, 0xFF) -> jpeg(bytes)
+            bytes.ascii(0, "GIF87a") || bytes.ascii(0, "GIF89a") ->
+                Sniffed("image/gif", bytes.uint16le(6), bytes.uint16le(8))
+            bytes.ascii(0, "RIFF") && bytes.ascii(8, "WEBP") -> webp(bytes)
+            bytes.ascii(0, "BM") ->
+                Sniffed("image/bmp", bytes.int32le(18), bytes.int32le(22)?.absoluteValue)
+            bytes.ascii(4, "ftyp") -> isoMedia(bytes)
+            bytes.startsWith(0x49, 0x49, 0x2A, 0x00) || bytes.startsWith(0x4D, 0x4D, 0x00, 0x2A) -> Sniffed("image/tiff")
+            bytes.startsWith(0x00, 0x00, 0x01, 0x00) ->
+                Sniffed("image/x-icon", bytes.uint8(6)?.let { if (it == 0) 256 else it }, bytes.uint8(7)?.let { if (it == 0) 256 else it })
+            bytes.startsWith(0x1A, 0x45, 0xDF, 0xA3) -> Sniffed("video/webm")
+            bytes.ascii(0, "%PDF-") -> Sniffed("application/pdf")
+            bytes.startsWith(0x50, 0x4B, 0x03, 0x04) -> Sniffed("application/zip")
+            else -> null
+        }
+    }
+
+    private fun jpeg(bytes: Bytes): Sniffed {
+        var offset = 2
+        while (offset + 4 <= bytes.length) {
+            if (bytes.uint8(offset) != 0xFF) {
+                break
+            }
+            val marker = bytes.uint8(offset + 1) ?: break
+            when {
+                marker == 0xFF -> offset++ // fill byte
+                marker == 0x01 || marker in 0xD0..0xD9 -> offset += 2 // markers without a length
+                marker in 0xC0..0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC ->
+                    return Sniffed("image/jpeg", bytes.uint16(offset + 7), bytes.uint16(offset + 5))
+                else -> offset += 2 + (bytes.uint16(offset + 2) ?: break)
+            }
+        }
+        return Sniffed("image/jpeg")
+    }
+
+    private fun webp(bytes: Bytes): Sniffed = when {
+        bytes.ascii(12, "VP8 ") ->
+            Sniffed("image/webp", bytes.uint16le(26)?.and(0x3FFF), bytes.uint16le(28)?.and(0x3FFF))
+        bytes.ascii(12, "VP8L") && bytes.length >= 25 -> {
+            val b1 = bytes.uint8(22)!!
+            val b2 = bytes.uint8(23)!!
+            val b3 = bytes.uint8(24)!!
+            val width = 1 + (((b1 and 0x3F) shl 8) or bytes.uint8(21)!!)
+            val height = 1 + (((b3 and 0x0F) shl 10) or (b2 shl 2) or ((b1 and 0xC0) shr 6))
+            Sniffed("image/webp", width, height)
+        }
+        bytes.ascii(12, "VP8X") ->
+            Sniffed("image/webp", bytes.uint24le(24)?.plus(1), bytes.uint24le(27)?.plus(1))
+        else -> Sniffed("image/webp")
+    }
+
+    private fun isoMedia(bytes: Bytes): Sniffed {
+        val mimeType = when {
+            bytes.ascii(8, "avif") || bytes.ascii(8, "avis") -> "image/avif"
+            bytes.ascii(8, "heic") || bytes.ascii(8, "heix") || bytes.ascii(8, "mif1") -> "image/heic"
+            bytes.ascii(8, "qt  ") -> "video/quicktime"
+            // iTunes audio, audiobooks and protected audio
+            bytes.ascii(8, "M4A ") || bytes.ascii(8, "M4B ") || bytes.ascii(8, "M4P ") -> return Sniffed("audio/mp4")
+            else -> return Sniffed("video/mp4")
+        }
+        // the image spatial extents property, good enough without resolving which item is the primary one
+        val ispe = bytes.indexOf("ispe")
+        if (ispe < 0) {
+            return Sniffed(mimeType)
+        }
+        return Sniffed(mimeType, bytes.int32(ispe + 8), bytes.int32(ispe + 12))
+    }
+
+    /**
+     * The type of content [sniff] didn't recognize, from the extension of [fileName]. The client picked that, so
+     * only types browsers display passively are taken from it. Anything else, HTML and SVG to start with, would let
+     * an upload run scripts on this origin.
+     */
+    fun typeOfUnrecognized(fileName: String): String {
+        val byExtension = MimeTypes.getDefaultMimeByExtension(fileName) ?: return OCTET_STREAM
+        val passive = byExtension in PASSIVE_TYPES || byExtension.startsWith("audio/") || byExtension.startsWith("video/")
+        return if (passive) byExtension else OCTET_STREAM
+    }
+
+    private const val OCTET_STREAM = "application/octet-stream"
+    private val PASSIVE_TYPES = setOf("text/plain", "text/csv", "application/json", "application/pdf", "application/zip")
+
+    private class Bytes(private val data: ByteArray, val length: Int) {
+        fun uint8(offset: Int): Int? = if (offset in 0 until length) data[offset].toInt() and 0xFF else null
+
+        fun uint16(offset: Int): Int? = if (offset + 2 <= length) (uint8(offset)!! shl 8) or uint8(offset + 1)!! else null
+
+        fun uint16le(offset: Int): Int? = if (offset + 2 <= length) uint8(offset)!! or (uint8(offset + 1)!! shl 8) else null
+
+        fun uint24le(offset: Int): Int? = if (offset + 3 <= length) uint16le(offset)!! or (uint8(offset + 2)!! shl 16) else null
+
+        fun int32(offset: Int): Int? = if (offset + 4 <= length) (uint16(offset)!! shl 16) or uint16(offset + 2)!! else null
+
+        fun int32le(offset: Int): Int? = if (offset + 4 <= length) uint16le(offset)!! or (uint16le(offset + 2)!! shl 16) else null
+
+        fun startsWith(vararg prefix: Int): Boolean = prefix.indices.all { uint8(it) == prefix[it] }
+
+        fun ascii(offset: Int, text: String): Boolean = text.indices.all { uint8(offset + it) == text[it].code }
+
+        fun indexOf(text: String): Int = (0..length - text.length).firstOrNull { ascii(it, text) } ?: -1
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.analysis
+
+import dev.mizule.imagery.app.config.PlaceholderConfig
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.StorageBackend
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.awt.image.BufferedImage
+import java.io.Closeable
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import javax.imageio.ImageIO
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Computes a BlurHash and the average color of uploaded images in the background, and adds them to their
+ * index entries once done.
+ *
+ * Work runs on a fixed number of low priority threads behind a bounded queue. When the queue is full, uploads
+ * go without a placeholder rather than waiting for one.
+ */
+class PlaceholderGenerator(
+    private val config: PlaceholderConfig,
+    private val storage: StorageBackend,
+    private val index: FileIndex,
+    private val onUpdate: (UploadedFile) -> Unit,
+) : Closeable {
+    private val executor = ThreadPoolExecutor(
+        config.threads,
+        config.threads,
+        0,
+        TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue(config.queueSize),
+        { runnable -> Thread(runnable, "Imagery Placeholders").apply { isDaemon = true; priority = Thread.MIN_PRIORITY } },
+    )
+
+    fun submit(file: UploadedFile) {
+        if (file.mimeType !in DECODABLE_TYPES || file.blurHash != null) {
+            return
+        }
+        val width = file.width ?: return
+        val height = file.height ?: return
+        if (width.toLong() * height > config.maxPixels) {
+            return
+        }
+        try {
+            executor.execute { generate(file) }
+        } catch (e: RejectedExecutionException) {
+            logger.debug { "Skipping the placeholder of ${file.fileName}, too many are queued" }
+        }
+    }
+
+    private fun generate(file: UploadedFile) {
+        val image = try {
+            decode(file) ?: return
+        } catch (e: Exception) {
+            logger.warn(e) { "Could not decode ${file.fileName} for its placeholder" }
+            return
+        }
+        val pixels = image.getRGB(0, 0, image.width, image.height, null, 0, image.width)
+        val result = BlurHash.encode(pixels, image.width, image.height, config.componentsX, config.componentsY)
+        val updated = index.update(file.id) {
+            it.copy(blurHash = result.hash, dominantColor = "#%06x".format(result.averageColor))
+        }
+        updated?.let(onUpdate)
+    }
+
+    /**
+     * Decodes every few pixels only, enough for a preview [SAMPLE_SIZE] pixels across.
+     */
+    private fun decode(file: UploadedFile): BufferedImage? {
+        val input = storage.get(file.storageKey) ?: return null
+        input.use {
+            val stream = ImageIO.createImageInputStream(input) ?: return null
+            stream.use {
+                val reader = ImageIO.getImageReaders(stream).asSequence().firstOrNull() ?: return null
+                try {
+                    reader.setInput(stream, true, true)
+                    val step = maxOf(1, maxOf(reader.getWidth(0), reader.getHeight(0)) / SAMPLE_SIZE)
+                    val param = reader.defaultReadParam.apply { setSourceSubsampling(step, step, 0, 0) }
+                    return reader.read(0, param)
+                } finally {
+                    reader.dispose()
+                }
+            }
+        }
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+
+    private companion object {
+        const val SAMPLE_SIZE = 64
+        val DECODABLE_TYPES = setOf("image/png", "image/jpeg", "image/gif", "image/bmp")
+    }
+}
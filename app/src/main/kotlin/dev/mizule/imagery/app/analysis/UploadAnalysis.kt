@@ -0,0 +1,48 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.analysis
+
+import java.io.OutputStream
+import java.nio.file.Path
+import kotlin.io.path.inputStream
+
+/**
+ * @param mimeType the type recognized from the content, `null` if it wasn't
+ */
+data class UploadAnalysis(
+    val mimeType: String?,
+    val width: Int?,
+    val height: Int?,
+    val size: Long,
+    val sha256: String,
+    val crc32: Long,
+) {
+    companion object {
+        fun of(file: Path): UploadAnalysis = AnalyzingInputStream(file.inputStream()).use {
+            it.transferTo(OutputStream.nullOutputStream())
+            it.analysis()
+        }
+    }
+}
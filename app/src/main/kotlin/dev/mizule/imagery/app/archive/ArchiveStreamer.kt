@@ -0,0 +1,93 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.archive
+
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.StorageBackend
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.OutputStream
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Writes uploads into a ZIP archive as it is being sent, one file at a time.
+ *
+ * Nothing but a copy buffer is held in memory: each file is copied straight from storage into the archive.
+ * Already compressed formats are STORED, which needs their size and CRC-32 up front. Both are usually in the
+ * index, otherwise the file is read twice.
+ */
+class ArchiveStreamer(private val storage: StorageBackend) {
+
+    /**
+     * Writes [files] to [output] and closes it. Files whose bytes are gone are left out.
+     */
+    fun write(files: List<UploadedFile>, output: OutputStream) {
+        ZipOutputStream(output).use { zip ->
+            for (file in files) {
+                val size = file.size.takeIf { it >= 0 } ?: storage.size(file.storageKey) ?: continue
+                val entry = ZipEntry(file.fileName).apply { time = file.uploadedDate }
+                if (!compressible(file.mimeType)) {
+                    entry.method = ZipEntry.STORED
+                    entry.size = size
+                    entry.compressedSize = size
+                    entry.crc = file.crc32 ?: crcOf(file) ?: continue
+                }
+                val input = storage.get(file.storageKey)
+                if (input == null) {
+                    logger.warn { "Leaving ${file.fileName} out of an archive, its bytes are gone" }
+                    continue
+                }
+                zip.putNextEntry(entry)
+                input.use { it.transferTo(zip) }
+                zip.closeEntry()
+            }
+        }
+    }
+
+    private fun crcOf(file: UploadedFile): Long? = storage.get(file.storageKey)?.let { input ->
+        CheckedInputStream(input, CRC32()).use {
+            it.transferTo(OutputStream.nullOutputStream())
+            it.checksum.value
+        }
+    }
+
+    private fun compressible(mimeType: String): Boolean =
+        mimeType.startsWith("text/") || mimeType in COMPRESSIBLE_TYPES
+
+    private companion object {
+        val COMPRESSIBLE_TYPES = setOf(
+            "application/json",
+            "application/xml",
+            "application/javascript",
+            "image/svg+xml",
+            "image/bmp",
+            "image/tiff",
+        )
+    }
+}
@@ -25,20 +25,23 @@
 package dev.mizule.imagery.app.auth
 
 import dev.mizule.imagery.app.config.UserConfig
+import io.github.oshai.kotlinlogging.KotlinLogging
+import org.spongepowered.configurate.ConfigurateException
 import org.spongepowered.configurate.jackson.JacksonConfigurationLoader
 import org.spongepowered.configurate.kotlin.extensions.get
 import org.spongepowered.configurate.kotlin.objectMapperFactory
 import java.security.SecureRandom
 import java.util.Base64
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.io.path.Path
 import kotlin.io.path.exists
 
-class AuthHandler(userConfigPath: String) {
+private val logger = KotlinLogging.logger {}
 
-    private val usersMap: MutableMap<String, User> = mutableMapOf()
+class AuthHandler(userConfigPath: String) {
 
     val usersPath = Path(userConfigPath)
-    val usersLoader = JacksonConfigurationLoader.builder()
+    private val usersLoader = JacksonConfigurationLoader.builder()
         .path(usersPath)
         .defaultOptions { options ->
             options.shouldCopyDefaults(true)
@@ -48,22 +51,31 @@ class AuthHandler(userConfigPath: String) {
         }
         .build()
 
-    val usersNode = usersLoader.load()
-    val usersConfig = requireNotNull(usersNode.get<UserConfig>()) {
-        "Could not read user configuration"
-    }
+    // replaced as a whole on every change, so lookups never see a partially loaded file
+    private val snapshot = AtomicReference(Users(readUsers()))
+
+    val users: List<User>
+        get() = snapshot.get().users
 
     init {
         if (!usersPath.exists()) {
-            usersNode.set(usersConfig) // update the backing node to add defaults
-            usersLoader.save(usersNode)
+            save(users) // write out the defaults
         }
-        loadUsers()
     }
 
-    private fun loadUsers() {
-        usersConfig.users.forEach {
-            this.usersMap[it.username] = User(it.username, it.token)
+    /**
+     * Re-reads the users file, keeping the current users if it cannot be read.
+     */
+    fun reload() {
+        val users = try {
+            readUsers()
+        } catch (e: ConfigurateException) {
+            logger.error(e) { "Could not reload users from $usersPath, keeping the current ones" }
+            return
+        }
+        val previous = snapshot.getAndSet(Users(users))
+        if (previous.users != users) {
+            logger.info { "Reloaded ${users.size} users from $usersPath" }
         }
     }
 
@@ -74,19 +86,36 @@ fun createUser(name: String): User {
     }
 
     fun isAuthorized(token: String): Boolean {
-        return usersMap.values.any { it.token == token }
+        return token in snapshot.get().byToken
     }
 
     fun getUserByToken(token: String): User? {
-        return usersMap.values.find { it.token == token }
+        return snapshot.get().byToken[token]
     }
 
+    @Synchronized
     fun createUser(name: String, token: String): User {
         val user = User(name, token)
-        this.usersMap[name] to user
-        this.usersConfig.users.add(user)
-        usersNode.set(usersConfig)
-        usersLoader.save(usersNode)
+        val users = this.users + user
+        save(users)
+        snapshot.set(Users(users))
         return user
     }
+
+    private fun readUsers(): List<User> {
+        val config = requireNotNull(usersLoader.load().get<UserConfig>()) {
+            "Could not read user configuration"
+        }
+        return config.users.toList()
+    }
+
+    private fun save(users: List<User>) {
+        val node = usersLoader.createNode()
+        node.set(UserConfig(users.toMutableList()))
+        usersLoader.save(node)
+    }
+
+    private class Users(val users: List<User>) {
+        val byToken: Map<String, User> = users.associateBy { it.token }
+    }
 }
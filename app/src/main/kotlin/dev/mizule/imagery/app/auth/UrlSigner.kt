@@ -0,0 +1,83 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.auth
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.Base64
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Signs and verifies expiring links to uploads. A link carries its expiry and an HMAC over the upload id and
+ * that expiry, so checking one takes no I/O and no state.
+ */
+class UrlSigner(secret: ByteArray) {
+    private val prototype = Mac.getInstance(ALGORITHM).apply { init(SecretKeySpec(secret, ALGORITHM)) }
+
+    /**
+     * Signs access to upload [id] until [expires], in epoch seconds.
+     */
+    fun sign(id: String, expires: Long): String = ENCODER.encodeToString(mac(id, expires))
+
+    /**
+     * Whether [signature] grants access to upload [id] right now. Both parameters come straight from the request.
+     */
+    fun verify(id: String, expires: String?, signature: String?, now: Long = System.currentTimeMillis() / 1000): Boolean {
+        val expiry = expires?.toLongOrNull() ?: return false
+        if (expiry < now || signature == null) {
+            return false
+        }
+        val given = try {
+            DECODER.decode(signature)
+        } catch (e: IllegalArgumentException) {
+            return false
+        }
+        return MessageDigest.isEqual(mac(id, expiry), given)
+    }
+
+    private fun mac(id: String, expires: Long): ByteArray {
+        // a Mac is not thread-safe, cloning an initialized one is cheaper than looking up and keying a new one
+        val mac = prototype.clone() as Mac
+        return mac.doFinal("$id:$expires".toByteArray())
+    }
+
+    companion object {
+        private const val ALGORITHM = "HmacSHA256"
+        private val ENCODER = Base64.getUrlEncoder().withoutPadding()
+        private val DECODER = Base64.getUrlDecoder()
+
+        fun of(secret: String): UrlSigner {
+            if (secret.isNotEmpty()) {
+                return UrlSigner(secret.toByteArray())
+            }
+            logger.info { "No signing secret configured, signed links only stay valid until a restart" }
+            return UrlSigner(ByteArray(32).also(SecureRandom()::nextBytes))
+        }
+    }
+}
@@ -32,4 +32,12 @@ data class User(
     val username: String,
 
     val token: String,
+
+    val maxBytes: Long = -1,
+
+    val maxFiles: Long = -1,
+
+    val maxUploadsPerWindow: Long = -1,
+
+    val admin: Boolean = false,
 )
@@ -0,0 +1,371 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.backup
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import dev.mizule.imagery.app.config.BackupConfig
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.StorageBackend
+import dev.mizule.imagery.app.util.Hashing
+import dev.mizule.imagery.app.util.Throttle
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.DigestInputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+import kotlin.io.path.createDirectories
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+import kotlin.io.path.inputStream
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.io.path.outputStream
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Takes incremental snapshots of the index and storage while the server keeps running, and restores them.
+ *
+ * Snapshot `n` is an archive `snapshot-n.zip` holding the whole index as of the snapshot and the files that
+ * were added or changed since snapshot `n - 1`, next to a manifest `snapshot-n.json` recording, for every file
+ * in the index, its checksum and the snapshot whose archive holds its bytes.
+ */
+class SnapshotManager(
+    private val config: BackupConfig,
+    private val index: FileIndex,
+    private val storage: StorageBackend,
+    private val mapper: ObjectMapper,
+) {
+    private val directory = Path.of(config.path)
+    private val running = AtomicBoolean()
+
+    @Volatile
+    private var progress: Progress? = null
+
+    /**
+     * Starts writing the next snapshot on [executor], returning its number, or `null` if one is already being written.
+     */
+    fun start(executor: Executor): Int? {
+        if (!running.compareAndSet(false, true)) {
+            return null
+        }
+        try {
+            val previous = latestManifest()
+            val current = Progress((previous?.number ?: 0) + 1, System.currentTimeMillis())
+            progress = current
+            executor.execute {
+                try {
+                    writeSnapshot(previous, current)
+                } catch (e: Exception) {
+                    logger.error(e) { "Failed to write snapshot ${current.number}" }
+                    current.error = e.toString()
+                } finally {
+                    current.finished = System.currentTimeMillis()
+                    running.set(false)
+                }
+            }
+            return current.number
+        } catch (e: Exception) {
+            running.set(false)
+            throw e
+        }
+    }
+
+    /**
+     * How the snapshot being written, or else the last one started, is getting on, or `null` if none was started.
+     */
+    fun status(): Status? = progress?.let {
+        Status(it.number, it.started, it.finished, it.files, it.writtenFiles.get(), it.writtenBytes.get(), it.error)
+    }
+
+    private fun writeSnapshot(previous: Manifest?, progress: Progress) {
+        directory.createDirectories()
+        val started = progress.started
+        val files = index.snapshot()
+        val number = progress.number
+
+        val entries = HashMap<String, ManifestEntry>(files.size)
+        val added = ArrayList<UploadedFile>()
+        for (file in files) {
+            val before = previous?.files?.get(file.id)
+            if (before != null && before.fileName == file.storageKey && (file.sha256 == null || before.sha256 == file.sha256)) {
+                entries[file.id] = before
+            } else {
+                entries[file.id] = ManifestEntry(file.storageKey, file.sha256, number)
+                added += file
+            }
+        }
+        progress.files = added.size
+
+        val archive = archivePath(number)
+        val temp = Files.createTempFile(directory, ".snapshot-", ".tmp")
+        val spool = Files.createTempFile(directory, ".snapshot-", ".file")
+        val throttle = Throttle(config.bytesPerSecond)
+        var missing = 0
+        try {
+            ZipOutputStream(temp.outputStream().buffered()).use { zip ->
+                zip.putNextEntry(ZipEntry(INDEX_ENTRY))
+                mapper.writeValue(NonClosingOutputStream(zip), files)
+                zip.closeEntry()
+
+                val written = HashSet<String>()
+                for (file in added) {
+                    if (!written.add(file.storageKey)) {
+                        continue // shared with an upload already in this archive
+                    }
+                    val input = storage.get(file.storageKey)
+                    if (input == null) {
+                        // deleted since the cut, or already missing
+                        entries.remove(file.id)
+                        missing++
+                        continue
+                    }
+                    // uploads are already compressed, so they are stored as they are, which needs the size and
+                    // checksum up front, so they go through a local copy rather than being read from storage twice
+                    val crc = CRC32()
+                    val size = CheckedInputStream(input, crc).use { copyThrottled(it, spool, throttle) }
+                    zip.putNextEntry(
+                        ZipEntry(FILES_PREFIX + file.storageKey).apply {
+                            method = ZipEntry.STORED
+                            this.size = size
+                            compressedSize = size
+                            this.crc = crc.value
+                        },
+                    )
+                    spool.inputStream().use { it.copyTo(zip, BUFFER_SIZE) }
+                    zip.closeEntry()
+                    progress.writtenBytes.addAndGet(size)
+                    progress.writtenFiles.incrementAndGet()
+                }
+            }
+            Files.move(temp, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            temp.deleteIfExists()
+            spool.deleteIfExists()
+        }
+
+        val manifest = Manifest(number, started, entries)
+        writeAtomically(manifestPath(number), manifest)
+        logger.info {
+            "Wrote snapshot $number with ${files.size} index entries and ${added.size - missing} new files " +
+                "in ${System.currentTimeMillis() - started} ms"
+        }
+    }
+
+    private fun copyThrottled(input: InputStream, target: Path, throttle: Throttle): Long {
+        val buffer = ByteArray(BUFFER_SIZE)
+        var size = 0L
+        target.outputStream().use { output ->
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) {
+                    break
+                }
+                output.write(buffer, 0, read)
+                size += read
+                throttle.acquire(read)
+            }
+        }
+        return size
+    }
+
+    private fun writeAtomically(path: Path, value: Any) {
+        val temp = Files.createTempFile(directory, ".manifest-", ".tmp")
+        try {
+            mapper.writeValue(temp.toFile(), value)
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            temp.deleteIfExists()
+        }
+    }
+
+    /**
+     * Writes the files of the latest snapshot that storage doesn't have yet back to storage, on several threads,
+     * then puts its index entries back into the index. Files whose bytes don't match the manifest are not written,
+     * and their uploads are left out of the index.
+     */
+    fun restore(number: Int? = null): Int {
+        val manifest = (if (number == null) latestManifest() else readManifest(number))
+            ?: throw IllegalStateException("No snapshot to restore in $directory")
+        val archives = manifest.files.values.mapTo(HashSet()) { it.snapshot }.associateWith { ZipFile(archivePath(it).toFile()) }
+        val restored = AtomicInteger()
+        val failed = ConcurrentHashMap.newKeySet<String>()
+        val pool = ForkJoinPool(config.restoreParallelism.coerceAtLeast(1))
+        try {
+            pool.submit(
+                Callable {
+                    manifest.files.entries.parallelStream().forEach { (id, entry) ->
+                        if (storage.exists(entry.fileName)) {
+                            return@forEach
+                        }
+                        val zip = archives.getValue(entry.snapshot)
+                        val zipEntry = zip.getEntry(FILES_PREFIX + entry.fileName)
+                        if (zipEntry == null) {
+                            logger.error { "Snapshot ${entry.snapshot} does not contain ${entry.fileName}" }
+                            failed += id
+                            return@forEach
+                        }
+                        if (restoreFile(zip, zipEntry, entry)) {
+                            restored.incrementAndGet()
+                        } else {
+                            failed += id
+                        }
+                    }
+                },
+            ).join()
+        } finally {
+            pool.shutdown()
+            archives.values.forEach(ZipFile::close)
+        }
+
+        val files: List<UploadedFile> = ZipFile(archivePath(manifest.number).toFile()).use { zip ->
+            zip.getInputStream(zip.getEntry(INDEX_ENTRY)).use { mapper.readValue(it) }
+        }
+        val entries = files.filter { it.id in manifest.files && it.id !in failed }
+        index.putAll(entries)
+        index.save()
+        if (failed.isNotEmpty()) {
+            logger.error { "Left ${failed.size} uploads out of the restore, their files are damaged: ${failed.sorted().take(20).joinToString()}" }
+        }
+        logger.info { "Restored snapshot ${manifest.number}: ${restored.get()} files written, ${entries.size} index entries" }
+        return restored.get()
+    }
+
+    /**
+     * Copies [zipEntry] to storage through a temporary file, once its checksum matched [entry]'s.
+     */
+    private fun restoreFile(zip: ZipFile, zipEntry: ZipEntry, entry: ManifestEntry): Boolean {
+        val temp = Files.createTempFile(directory, ".restore-", ".tmp")
+        try {
+            val digest = Hashing.sha256()
+            try {
+                DigestInputStream(zip.getInputStream(zipEntry), digest).use { input ->
+                    temp.outputStream().use { input.copyTo(it, BUFFER_SIZE) }
+                }
+            } catch (e: ZipException) {
+                // stored entries are checked against their CRC while they are read
+                logger.error { "Snapshot ${entry.snapshot} holds a damaged copy of ${entry.fileName}: ${e.message}" }
+                return false
+            }
+            if (entry.sha256 != null && entry.sha256 != Hashing.hex(digest)) {
+                logger.error { "Snapshot ${entry.snapshot} holds ${entry.fileName} with a checksum that doesn't match the manifest" }
+                return false
+            }
+            storage.putFile(entry.fileName, temp)
+            return true
+        } finally {
+            temp.deleteIfExists()
+        }
+    }
+
+    private fun latestManifest(): Manifest? {
+        if (!directory.exists()) {
+            return null
+        }
+        val latest = directory.listDirectoryEntries("snapshot-*.json")
+            .mapNotNull { it.name.removePrefix("snapshot-").removeSuffix(".json").toIntOrNull() }
+            .maxOrNull() ?: return null
+        return readManifest(latest)
+    }
+
+    private fun readManifest(number: Int): Manifest? = manifestPath(number).takeIf { it.exists() }?.let { mapper.readValue(it.toFile()) }
+
+    private fun archivePath(number: Int): Path = directory.resolve("snapshot-$number.zip")
+
+    private fun manifestPath(number: Int): Path = directory.resolve("snapshot-$number.json")
+
+    /**
+     * @param fileName the key the bytes are stored under
+     * @param snapshot the snapshot whose archive holds the bytes of the file
+     */
+    data class ManifestEntry(val fileName: String, val sha256: String?, val snapshot: Int)
+
+    data class Manifest(val number: Int, val created: Long, val files: Map<String, ManifestEntry>)
+
+    /**
+     * @param finished when the snapshot was written or failed, `0` while it is being written
+     * @param files the number of new files going into the archive, `0` until they are known
+     * @param error why the snapshot failed, if it did
+     */
+    data class Status(
+        val number: Int,
+        val started: Long,
+        val finished: Long,
+        val files: Int,
+        val writtenFiles: Long,
+        val writtenBytes: Long,
+        val error: String?,
+    )
+
+    private class Progress(val number: Int, val started: Long) {
+        @Volatile
+        var files = 0
+
+        @Volatile
+        var finished = 0L
+
+        @Volatile
+        var error: String? = null
+
+        val writtenFiles = AtomicLong()
+        val writtenBytes = AtomicLong()
+    }
+
+    /**
+     * Keeps Jackson from closing the archive after writing the index into it.
+     */
+    private class NonClosingOutputStream(private val out: OutputStream) : OutputStream() {
+        override fun write(b: Int) = out.write(b)
+
+        override fun write(b: ByteArray, off: Int, len: Int) = out.write(b, off, len)
+
+        override fun flush() = out.flush()
+
+        override fun close() = out.flush()
+    }
+
+    private companion object {
+        const val INDEX_ENTRY = "index.json"
+        const val FILES_PREFIX = "files/"
+        const val BUFFER_SIZE = 64 * 1024
+    }
+}
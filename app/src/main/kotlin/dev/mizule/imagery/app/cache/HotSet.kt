@@ -0,0 +1,96 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.cache
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.github.benmanes.caffeine.cache.Cache
+import dev.mizule.imagery.app.config.MetadataCacheConfig
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.io.path.exists
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Remembers which keys of a size-bounded cache are requested the most, so a restarted server can load them
+ * before the requests for them arrive.
+ */
+class HotSet(private val config: MetadataCacheConfig, private val mapper: ObjectMapper) {
+    private val path = Path.of(config.hotSetPath)
+
+    /**
+     * Writes the [MetadataCacheConfig.hotSetSize] keys of [cache] with the highest access frequency, hottest first.
+     */
+    fun persist(cache: Cache<String, *>) {
+        if (config.hotSetSize <= 0) {
+            return
+        }
+        val eviction = cache.policy().eviction().orElse(null) ?: return
+        val hottest = eviction.hottest(config.hotSetSize).keys.toList()
+        val temp = Files.createTempFile(path.toAbsolutePath().parent, "hotset-", ".tmp")
+        mapper.writeValue(temp.toFile(), hottest)
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    /**
+     * Calls [load] for every persisted key, hottest first, on at most [MetadataCacheConfig.warmupParallelism] threads.
+     */
+    fun warmUp(load: (String) -> Unit) {
+        if (config.hotSetSize <= 0 || !path.exists()) {
+            return
+        }
+        val keys: List<String> = try {
+            mapper.readValue(path.toFile())
+        } catch (e: IOException) {
+            logger.warn(e) { "Could not read the hot set from $path" }
+            return
+        }
+        val started = System.currentTimeMillis()
+        val executor = Executors.newFixedThreadPool(config.warmupParallelism.coerceAtLeast(1)) { runnable ->
+            Thread(runnable, "Imagery Warmup").apply {
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+            }
+        }
+        for (key in keys) {
+            executor.execute {
+                try {
+                    load(key)
+                } catch (e: Exception) {
+                    logger.debug(e) { "Could not warm up $key" }
+                }
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        logger.info { "Warmed up ${keys.size} uploads in ${System.currentTimeMillis() - started} ms" }
+    }
+}
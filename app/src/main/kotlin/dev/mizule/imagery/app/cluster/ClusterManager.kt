@@ -0,0 +1,264 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.cluster
+
+import com.fasterxml.jackson.core.JacksonException
+import com.fasterxml.jackson.databind.ObjectMapper
+import dev.mizule.imagery.app.config.ClusterConfig
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.StorageBackend
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.io.path.exists
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Shards uploads over the configured nodes with a consistent-hash ring keyed by upload id.
+ *
+ * The membership this node last rebalanced to is remembered in [statePath], along with the one before it. When
+ * the configured membership differs, on startup or on a config reload, every local file whose owner changed is
+ * streamed to its new owner and removed here, so only the affected keys move. Until they all have, a node that
+ * misses a file it owns sends the request on to the file's owner under the previous membership.
+ */
+class ClusterManager(
+    config: ClusterConfig,
+    private val index: FileIndex,
+    private val storage: StorageBackend,
+    private val statePath: Path,
+    private val mapper: ObjectMapper,
+) {
+    @Volatile
+    private var config = config
+
+    @Volatile
+    private var current = Membership(Members.of(config))
+
+    @Volatile
+    private var previous: Membership?
+    private val rebalancing = AtomicBoolean()
+    private val client = HttpClient.newBuilder()
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .build()
+
+    init {
+        require(config.nodes.isNotEmpty()) { "The cluster needs at least one node" }
+        // a node that isn't part of the ring can't own new uploads, which is only fine while it hands off its files
+        require(config.nodeId in config.nodes || index.ids().isNotEmpty()) {
+            "Node ${config.nodeId} is not one of the cluster nodes ${config.nodes.keys}"
+        }
+        val state = readState()
+        previous = when {
+            state == null -> current.without(config.nodeId)
+            state.current != current.members -> Membership(state.current)
+            else -> state.previous?.let(::Membership)
+        }
+    }
+
+    /** Whether this node was removed from the ring and only hands its files off. */
+    val draining: Boolean
+        get() = config.nodeId !in current.ring.nodes
+
+    fun isLocal(id: String): Boolean = current.ring.ownerOf(id) == config.nodeId
+
+    fun ownerUrl(id: String): String? = current.urlOf(id)
+
+    /**
+     * The base URL of the node that owned [id] before the last membership change, if that was another node.
+     * A file this node owns but misses may still be waiting there to be moved here.
+     */
+    fun previousOwnerUrl(id: String): String? {
+        val previous = previous ?: return null
+        return previous.urlOf(id)?.takeIf { previous.ring.ownerOf(id) != config.nodeId }
+    }
+
+    /** The base URL of any other node, for redirecting uploads while draining. */
+    fun anyRemoteUrl(): String? = current.ring.nodes.filter { it != config.nodeId }.randomOrNull()?.let { config.nodes[it] }
+
+    fun isAuthorized(secret: String?): Boolean {
+        if (config.secret.isEmpty() || secret == null) {
+            return false
+        }
+        return MessageDigest.isEqual(secret.toByteArray(), config.secret.toByteArray())
+    }
+
+    fun encodeMetadata(file: UploadedFile): String = Base64.getUrlEncoder().encodeToString(mapper.writeValueAsBytes(file))
+
+    fun decodeMetadata(header: String): UploadedFile = mapper.readValue(Base64.getUrlDecoder().decode(header), UploadedFile::class.java)
+
+    /**
+     * Switches to a reloaded config. The id of this node can't change without a restart.
+     * Call [rebalance] afterwards to move the files whose owner changed.
+     */
+    fun reconfigure(updated: ClusterConfig) {
+        require(updated.nodeId == config.nodeId) { "The node id only changes on a restart" }
+        val next = Membership(Members.of(updated))
+        if (next.members != current.members) {
+            previous = current
+        }
+        config = updated
+        current = next
+    }
+
+    /**
+     * Moves every local file this node no longer owns to its owner, if the ring changed since the last run.
+     * Does nothing while another rebalance is running.
+     */
+    fun rebalance(onMoved: (UploadedFile) -> Unit) {
+        if (!rebalancing.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            rebalance(current, onMoved)
+        } finally {
+            rebalancing.set(false)
+        }
+    }
+
+    private fun rebalance(membership: Membership, onMoved: (UploadedFile) -> Unit) {
+        if (readState()?.current == membership.members) {
+            return
+        }
+
+        val moving = index.ids().filter { membership.ring.ownerOf(it) != config.nodeId }
+        logger.info { "Cluster membership changed, moving ${moving.size} files to their new owners" }
+
+        val failures = AtomicInteger()
+        val pool = Executors.newFixedThreadPool(config.rebalanceParallelism.coerceAtLeast(1))
+        for (id in moving) {
+            pool.execute {
+                try {
+                    transfer(id, membership)?.let(onMoved)
+                } catch (e: Exception) {
+                    failures.incrementAndGet()
+                    logger.warn(e) { "Could not move $id to its owner" }
+                }
+            }
+        }
+        pool.shutdown()
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS)
+
+        if (failures.get() == 0) {
+            writeState(State(membership.members, previous?.members))
+            logger.info { "Rebalanced ${moving.size} files" }
+        } else {
+            logger.warn { "Rebalancing left ${failures.get()} files behind, retrying later" }
+        }
+    }
+
+    private fun transfer(id: String, membership: Membership): UploadedFile? {
+        val file = index[id] ?: return null
+        val size = storage.size(file.storageKey) ?: return null
+        val owner = checkNotNull(membership.urlOf(id)) { "No owner for $id" }
+
+        val body = if (size == 0L) {
+            HttpRequest.BodyPublishers.noBody()
+        } else {
+            HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream { storage.get(file.storageKey) }, size)
+        }
+
+        val response = client.send(
+            HttpRequest.newBuilder(URI.create("$owner/internal/cluster/$id"))
+                .header(SECRET_HEADER, config.secret)
+                .header(METADATA_HEADER, encodeMetadata(file))
+                .PUT(body)
+                .build(),
+            HttpResponse.BodyHandlers.discarding(),
+        )
+        check(response.statusCode() / 100 == 2) { "Owner answered with status ${response.statusCode()}" }
+
+        index.blobs.withLock(file.storageKey) {
+            index.remove(id)
+            if (!index.blobs.isReferenced(file.storageKey)) {
+                storage.delete(file.storageKey)
+            }
+        }
+        return file
+    }
+
+    private fun readState(): State? {
+        if (!statePath.exists()) {
+            return null
+        }
+        return try {
+            mapper.readValue(statePath.toFile(), State::class.java)
+        } catch (e: JacksonException) {
+            // written by an older version, which only recorded the node ids
+            logger.info { "Ignoring the unreadable cluster state in $statePath" }
+            null
+        }
+    }
+
+    private fun writeState(state: State) {
+        val temp = Files.createTempFile(statePath.toAbsolutePath().parent, "cluster-", ".tmp")
+        mapper.writeValue(temp.toFile(), state)
+        Files.move(temp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    /**
+     * The nodes and ring layout that decide ownership, which is all a membership change is about.
+     */
+    data class Members(val virtualNodes: Int, val nodes: Map<String, String>) {
+        companion object {
+            fun of(config: ClusterConfig) = Members(config.virtualNodes, config.nodes)
+        }
+    }
+
+    /**
+     * @param current the membership this node last moved its files for
+     * @param previous the membership before that one, if known
+     */
+    data class State(val current: Members, val previous: Members? = null)
+
+    private class Membership(val members: Members) {
+        val ring = HashRing(members.nodes.keys, members.virtualNodes)
+
+        fun urlOf(id: String): String? = ring.ownerOf(id)?.let { members.nodes[it] }
+
+        /**
+         * The membership before [nodeId] joined, which is the best guess of a node that remembers none.
+         */
+        fun without(nodeId: String): Membership? =
+            if (nodeId in members.nodes && members.nodes.size > 1) Membership(members.copy(nodes = members.nodes - nodeId)) else null
+    }
+
+    companion object {
+        const val SECRET_HEADER = "X-Imagery-Cluster-Secret"
+        const val METADATA_HEADER = "X-Imagery-Metadata"
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.cluster
+
+import java.util.TreeMap
+
+/**
+ * A consistent-hash ring mapping keys to node ids, with [virtualNodes] points per node.
+ */
+class HashRing(nodes: Collection<String>, virtualNodes: Int) {
+    private val ring = TreeMap<Long, String>()
+
+    val nodes: Set<String> = nodes.toSortedSet()
+
+    init {
+        for (node in this.nodes) {
+            for (i in 0 until virtualNodes) {
+                ring[hash("$node#$i")] = node
+            }
+        }
+    }
+
+    fun ownerOf(key: String): String? {
+        if (ring.isEmpty()) {
+            return null
+        }
+        return (ring.ceilingEntry(hash(key)) ?: ring.firstEntry()).value
+    }
+
+    companion object {
+        /**
+         * FNV-1a followed by the murmur3 finalizer, so similar keys still spread over the ring.
+         */
+        fun hash(key: String): Long {
+            var hash = -0x340d631b7bdddcdbL
+            for (byte in key.encodeToByteArray()) {
+                hash = (hash xor (byte.toLong() and 0xff)) * 0x100000001b3L
+            }
+            hash = (hash xor (hash ushr 33)) * -0xae502812aa7333L
+            hash = (hash xor (hash ushr 33)) * -0x3b314601e57a13adL
+            return hash xor (hash ushr 33)
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.config
+
+import org.spongepowered.configurate.objectmapping.ConfigSerializable
+import org.spongepowered.configurate.objectmapping.meta.Comment
+
+@ConfigSerializable
+data class ClusterConfig(
+    @Comment("Whether to shard uploads over the nodes below by upload id.")
+    val enabled: Boolean = false,
+
+    @Comment("The id of this node, as used in the nodes below.")
+    val nodeId: String = "node-1",
+
+    @Comment(
+        "Every node in the cluster, mapped from its id to its base URL without trailing slashes. \n" +
+            "To try it on one machine, give each instance its own port, storage path and index path.",
+    )
+    val nodes: Map<String, String> = mapOf("node-1" to "http://127.0.0.1:8052"),
+
+    @Comment("The number of points each node gets on the hash ring.")
+    val virtualNodes: Int = 128,
+
+    @Comment("The shared secret nodes use to authenticate file transfers between each other.")
+    val secret: String = "",
+
+    @Comment("How many files to transfer at once while rebalancing.")
+    val rebalanceParallelism: Int = 4,
+
+    @Comment("How often to retry moving files that a previous rebalance left behind, in minutes.")
+    val rebalanceIntervalMinutes: Long = 10,
+)
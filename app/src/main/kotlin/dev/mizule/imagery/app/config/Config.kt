@@ -41,6 +41,39 @@ data class Config(
     @Comment("The path to the uploaded file storage directory.")
     val storagePath: String = "./storage",
 
+    @Comment("Where uploads are stored.")
+    val storage: StorageConfig = StorageConfig(),
+
+    @Comment("The in-memory cache of upload metadata.")
+    val metadataCache: MetadataCacheConfig = MetadataCacheConfig(),
+
+    @Comment("Resumable uploads sent in chunks.")
+    val chunkedUploads: ChunkedUploadConfig = ChunkedUploadConfig(),
+
+    @Comment("Per-user storage and upload rate quotas.")
+    val quotas: QuotaConfig = QuotaConfig(),
+
+    @Comment("Blurred previews of uploaded images, for front ends to show while the image loads.")
+    val placeholders: PlaceholderConfig = PlaceholderConfig(),
+
+    @Comment("View counts and trending uploads.")
+    val views: ViewStatsConfig = ViewStatsConfig(),
+
+    @Comment("Background verification of stored files.")
+    val scrubber: ScrubberConfig = ScrubberConfig(),
+
+    @Comment("Online snapshots of the index and storage.")
+    val backup: BackupConfig = BackupConfig(),
+
+    @Comment("Whether to reconcile stored files with the index on startup, after an unclean shutdown for example.")
+    val reconcileOnStartup: Boolean = false,
+
+    @Comment("Expiring links to uploads that are only served through them.")
+    val signedUrls: SignedUrlConfig = SignedUrlConfig(),
+
+    @Comment("Whether to break the time spent on uploads and serving down in a Server-Timing response header.")
+    val serverTiming: Boolean = false,
+
     @Comment("The length of the random generated path.")
     val pathLength: Int = 8,
 
@@ -52,4 +85,7 @@ data class Config(
             "Popular: X-Real-IP",
     )
     val addressHeader: String = "CF-Connecting-IP",
+
+    @Comment("Sharding uploads over several Imagery nodes.")
+    val cluster: ClusterConfig = ClusterConfig(),
 )
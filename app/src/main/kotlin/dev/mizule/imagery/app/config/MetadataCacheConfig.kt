@@ -0,0 +1,49 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.config
+
+import org.spongepowered.configurate.objectmapping.ConfigSerializable
+import org.spongepowered.configurate.objectmapping.meta.Comment
+
+@ConfigSerializable
+data class MetadataCacheConfig(
+    @Comment("The maximum number of uploads whose metadata is kept in memory.")
+    val maximumSize: Long = 100_000,
+
+    @Comment("The file the most frequently requested uploads are persisted to, to warm the cache up after a restart.")
+    val hotSetPath: String = "./hotset.json",
+
+    @Comment("How many of the most frequently requested uploads to persist, 0 to disable warming up.")
+    val hotSetSize: Int = 1000,
+
+    @Comment("How often the hot set is persisted, in seconds.")
+    val persistIntervalSeconds: Long = 300,
+
+    @Comment("Whether warming up also reads the files, filling the storage cache or the page cache.")
+    val warmupBytes: Boolean = false,
+
+    @Comment("How many uploads are warmed up at once.")
+    val warmupParallelism: Int = 8,
+)
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.config
+
+import org.spongepowered.configurate.objectmapping.ConfigSerializable
+import org.spongepowered.configurate.objectmapping.meta.Comment
+
+@ConfigSerializable
+data class QuotaConfig(
+    @Comment("Whether to enforce the quotas below. Usage is tracked either way.")
+    val enabled: Boolean = false,
+
+    @Comment("The default storage quota per user in bytes, -1 for none. Users can override it.")
+    val maxBytes: Long = -1,
+
+    @Comment("The default maximum number of files per user, -1 for none. Users can override it.")
+    val maxFiles: Long = -1,
+
+    @Comment("The default maximum number of uploads per user within the window, -1 for none. Users can override it.")
+    val maxUploadsPerWindow: Long = -1,
+
+    @Comment("The length of the upload rate window in minutes.")
+    val windowMinutes: Int = 60,
+
+    @Comment("The file usage counters are persisted to.")
+    val usagePath: String = "./usage.json",
+
+    @Comment("How often the usage counters are persisted, in seconds.")
+    val persistIntervalSeconds: Long = 60,
+)
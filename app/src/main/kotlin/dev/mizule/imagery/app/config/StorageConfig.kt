@@ -0,0 +1,90 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.config
+
+import org.spongepowered.configurate.objectmapping.ConfigSerializable
+import org.spongepowered.configurate.objectmapping.meta.Comment
+
+@ConfigSerializable
+data class StorageConfig(
+    @Comment("Where uploads are stored, either \"local\" (the storage path) or \"s3\".")
+    val type: String = "local",
+
+    @Comment("The S3-compatible bucket used by the \"s3\" storage type.")
+    val s3: S3Config = S3Config(),
+
+    @Comment("The directory remote storage types cache files in.")
+    val cachePath: String = "./cache",
+
+    @Comment("The maximum size of the local cache in bytes.")
+    val cacheMaxBytes: Long = 1024L * 1024 * 1024,
+
+    @Comment("Packing small uploads into large segment files.")
+    val segments: SegmentConfig = SegmentConfig(),
+)
+
+@ConfigSerializable
+data class SegmentConfig(
+    @Comment("Whether to pack small uploads into segment files instead of one file each.")
+    val enabled: Boolean = false,
+
+    @Comment("The directory segment files are stored in.")
+    val path: String = "./segments",
+
+    @Comment("Uploads of at most this many bytes are packed.")
+    val smallFileThreshold: Long = 512L * 1024,
+
+    @Comment("The size in bytes after which a new segment is started.")
+    val segmentSize: Long = 1024L * 1024 * 1024,
+
+    @Comment("Segments in which more than this fraction of the bytes belongs to deleted files are compacted.")
+    val compactionRatio: Double = 0.5,
+
+    @Comment("How often to look for segments to compact, in minutes.")
+    val compactionIntervalMinutes: Long = 10,
+)
+
+@ConfigSerializable
+data class S3Config(
+    @Comment("The endpoint URL, for example https://s3.eu-west-1.amazonaws.com or http://127.0.0.1:9000.")
+    val endpoint: String = "http://127.0.0.1:9000",
+
+    val region: String = "us-east-1",
+
+    val bucket: String = "imagery",
+
+    val accessKey: String = "",
+
+    val secretKey: String = "",
+
+    @Comment("Uploads of at least this many bytes, or of unknown size, use parallel multipart uploads.")
+    val multipartThreshold: Long = 16L * 1024 * 1024,
+
+    @Comment("The size of each multipart upload part in bytes, at least 5 MiB.")
+    val partSize: Long = 8L * 1024 * 1024,
+
+    @Comment("How many parts of one upload are sent at once.")
+    val uploadParallelism: Int = 4,
+)
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.config
+
+import org.spongepowered.configurate.objectmapping.ConfigSerializable
+import org.spongepowered.configurate.objectmapping.meta.Comment
+
+@ConfigSerializable
+data class ViewStatsConfig(
+    @Comment("Whether to count views of uploads.")
+    val enabled: Boolean = false,
+
+    @Comment("The file view totals are persisted to.")
+    val path: String = "./views.json",
+
+    @Comment("How often the view totals are persisted, in seconds.")
+    val persistIntervalSeconds: Long = 60,
+
+    @Comment("How many minutes of recent views are kept for trending uploads.")
+    val windowMinutes: Int = 60,
+
+    @Comment(
+        "The number of counters per row of each minute's sketch, rounded down to a power of two. \n" +
+            "Wider sketches estimate recent views more closely and take 32 bytes per unit of width and minute.",
+    )
+    val sketchWidth: Int = 2048,
+
+    @Comment("How many of the most viewed uploads of each minute are kept as candidates for trending uploads.")
+    val trendingCandidates: Int = 256,
+)
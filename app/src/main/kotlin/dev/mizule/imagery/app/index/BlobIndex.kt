@@ -0,0 +1,94 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.index
+
+import dev.mizule.imagery.app.model.UploadedFile
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks which uploads share stored bytes, by content hash and by storage key.
+ *
+ * Stored bytes are only deleted once no upload references them anymore. Adding and dropping references
+ * to one key is serialized through [withLock], so a new reference can't race the deletion of its bytes.
+ *
+ * Content is only found through uploads anyone may see, or through the uploads of the user asking. Otherwise
+ * knowing the hash of a signed-only upload would be enough to get a public link to it. When the upload content
+ * is found through is deleted, another upload of the same content takes its place.
+ */
+class BlobIndex : FileIndex.Listener {
+    private val byContent = ConcurrentHashMap<String, UploadedFile>()
+    private val byOwner = ConcurrentHashMap<String, UploadedFile>()
+    private val holders = ConcurrentHashMap<String, ConcurrentHashMap<String, UploadedFile>>()
+    private val references = ConcurrentHashMap<String, Int>()
+    private val locks = Array(LOCK_STRIPES) { Any() }
+
+    /**
+     * Returns an upload whose bytes have [sha256] and [size] that [user] may see, if one is stored.
+     */
+    fun find(sha256: String, size: Long, user: String): UploadedFile? =
+        byOwner[ownerKey(sha256, size, user)] ?: byContent[contentKey(sha256, size)]
+
+    fun isReferenced(storageKey: String): Boolean = references.containsKey(storageKey)
+
+    fun <T> withLock(storageKey: String, action: () -> T): T =
+        synchronized(locks[Math.floorMod(storageKey.hashCode(), LOCK_STRIPES)]) { action() }
+
+    override fun added(file: UploadedFile) {
+        references.merge(file.storageKey, 1, Int::plus)
+        if (file.sha256 != null && file.size >= 0) {
+            holders.computeIfAbsent(contentKey(file.sha256, file.size)) { ConcurrentHashMap() }[file.id] = file
+            byOwner.putIfAbsent(ownerKey(file.sha256, file.size, file.user), file)
+            if (!file.signedOnly) {
+                byContent.putIfAbsent(contentKey(file.sha256, file.size), file)
+            }
+        }
+    }
+
+    override fun removed(file: UploadedFile) {
+        references.computeIfPresent(file.storageKey) { _, count -> (count - 1).takeIf { it > 0 } }
+        if (file.sha256 != null && file.size >= 0) {
+            val contentKey = contentKey(file.sha256, file.size)
+            val remaining = holders.computeIfPresent(contentKey) { _, group ->
+                group.remove(file.id)
+                group.takeIf { it.isNotEmpty() }
+            }
+            // another upload of the same content takes its place, if one may be found the same way
+            byOwner.computeIfPresent(ownerKey(file.sha256, file.size, file.user)) { _, stored ->
+                if (stored.id != file.id) stored else remaining?.values?.firstOrNull { it.user == file.user }
+            }
+            byContent.computeIfPresent(contentKey) { _, stored ->
+                if (stored.id != file.id) stored else remaining?.values?.firstOrNull { !it.signedOnly }
+            }
+        }
+    }
+
+    private fun contentKey(sha256: String, size: Long) = "$sha256:$size"
+
+    private fun ownerKey(sha256: String, size: Long, user: String) = "$sha256:$size:$user"
+
+    private companion object {
+        const val LOCK_STRIPES = 64
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.index
+
+import dev.mizule.imagery.app.metrics.IndexSaveEvent
+import dev.mizule.imagery.app.model.UploadedFile
+import org.spongepowered.configurate.jackson.JacksonConfigurationLoader
+import org.spongepowered.configurate.kotlin.objectMapperFactory
+import java.nio.file.Path
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.io.path.fileSize
+
+/**
+ * The upload index, backed by a JSON file that is saved asynchronously after changes.
+ *
+ * Saves requested while one is still pending are coalesced into that one. Derived state is kept
+ * up to date through [Listener]s. Changes are serialized with a lock that [snapshot] shares, so a
+ * snapshot never contains half of a batch.
+ */
+class FileIndex(private val path: Path, private val executor: Executor) {
+    private val loader = JacksonConfigurationLoader.builder()
+        .path(path)
+        .defaultOptions { options ->
+            options.shouldCopyDefaults(true)
+            options.serializers { builder ->
+                builder.registerAnnotatedObjects(objectMapperFactory())
+            }
+        }
+        .build()
+    private val root = loader.load()
+    private val savePending = AtomicBoolean()
+    private val lock = ReentrantReadWriteLock()
+
+    private val listeners = CopyOnWriteArrayList<Listener>()
+
+    val byUser = UserUploadIndex()
+    val blobs = BlobIndex()
+
+    init {
+        for (id in ids()) {
+            get(id)?.let {
+                byUser.added(it)
+                blobs.added(it)
+            }
+        }
+        listeners += byUser
+        listeners += blobs
+    }
+
+    /**
+     * Registers [listener] for changes from now on. It does not see the entries already present.
+     */
+    fun addListener(listener: Listener) {
+        listeners += listener
+    }
+
+    operator fun get(id: String): UploadedFile? {
+        val node = root.node(id)
+        return if (node.virtual()) null else node.get(UploadedFile::class.java)
+    }
+
+    operator fun contains(id: String): Boolean = !root.node(id).virtual()
+
+    fun ids(): Set<String> = root.childrenMap().keys.mapTo(HashSet()) { it.toString() }
+
+    fun put(file: UploadedFile) {
+        lock.write { putWithoutSave(file) }
+        scheduleSave()
+    }
+
+    fun putAll(files: Collection<UploadedFile>) {
+        lock.write { files.forEach(::putWithoutSave) }
+        scheduleSave()
+    }
+
+    /**
+     * Replaces the entry for [id] with the result of [transform], unless it was removed. Returns the new entry.
+     */
+    fun update(id: String, transform: (UploadedFile) -> UploadedFile): UploadedFile? {
+        val file = lock.write { get(id)?.let(transform)?.also(::putWithoutSave) } ?: return null
+        scheduleSave()
+        return file
+    }
+
+    fun remove(id: String): UploadedFile? {
+        val file = lock.write {
+            val file = get(id) ?: return null
+            root.removeChild(id)
+            listeners.forEach { it.removed(file) }
+            file
+        }
+        scheduleSave()
+        return file
+    }
+
+    /**
+     * Every entry as of one point in time. Changes are only held up while the entries are copied, not converted.
+     */
+    fun snapshot(): List<UploadedFile> {
+        val copy = lock.read { root.copy() }
+        return copy.childrenMap().values.mapNotNull { it.get(UploadedFile::class.java) }
+    }
+
+    /**
+     * Saves right away on the calling thread, for when there is no time to wait for a scheduled save.
+     */
+    fun save() {
+        val event = IndexSaveEvent()
+        event.begin()
+        val copy = lock.read { root.copy() }
+        loader.save(copy)
+        event.end()
+        if (event.shouldCommit()) {
+            event.entries = copy.childrenMap().size
+            event.size = path.fileSize()
+            event.commit()
+        }
+    }
+
+    private fun putWithoutSave(file: UploadedFile) {
+        val previous = get(file.id)
+        root.node(file.id).set(file)
+        previous?.let { listeners.forEach { listener -> listener.removed(it) } }
+        listeners.forEach { it.added(file) }
+    }
+
+    fun scheduleSave() {
+        if (savePending.compareAndSet(false, true)) {
+            executor.execute {
+                savePending.set(false)
+                save()
+            }
+        }
+    }
+
+    interface Listener {
+        fun added(file: UploadedFile)
+
+        fun removed(file: UploadedFile)
+    }
+}
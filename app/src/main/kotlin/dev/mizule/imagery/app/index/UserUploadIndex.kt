@@ -0,0 +1,79 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.index
+
+import dev.mizule.imagery.app.model.UploadedFile
+import java.util.Base64
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListSet
+
+/**
+ * A secondary index of every user's upload ids, newest first.
+ *
+ * Pages are read from a skip list starting at the cursor, so their cost does not depend on how many
+ * uploads exist in total.
+ */
+class UserUploadIndex : FileIndex.Listener {
+    private val uploads = ConcurrentHashMap<String, ConcurrentSkipListSet<Entry>>()
+
+    override fun added(file: UploadedFile) {
+        uploads.computeIfAbsent(file.user) { ConcurrentSkipListSet() }.add(Entry(file.uploadedDate, file.id))
+    }
+
+    override fun removed(file: UploadedFile) {
+        uploads[file.user]?.remove(Entry(file.uploadedDate, file.id))
+    }
+
+    /**
+     * Returns up to [limit] ids of [user]'s uploads after [cursor], and the cursor of the next page if there is one.
+     */
+    fun page(user: String, cursor: String?, limit: Int): Page {
+        val entries = uploads[user] ?: return Page(emptyList(), null)
+        val tail = if (cursor == null) entries else entries.tailSet(decodeCursor(cursor), false)
+        val page = tail.asSequence().take(limit + 1).toList()
+        val next = if (page.size > limit) encodeCursor(page[limit - 1]) else null
+        return Page(page.take(limit).map { it.id }, next)
+    }
+
+    data class Page(val ids: List<String>, val next: String?)
+
+    private data class Entry(val uploadedDate: Long, val id: String) : Comparable<Entry> {
+        override fun compareTo(other: Entry): Int = compareValuesBy(other, this, Entry::uploadedDate).takeIf { it != 0 }
+            ?: id.compareTo(other.id)
+    }
+
+    private fun encodeCursor(entry: Entry): String =
+        Base64.getUrlEncoder().withoutPadding().encodeToString("${entry.uploadedDate}:${entry.id}".encodeToByteArray())
+
+    private fun decodeCursor(cursor: String): Entry {
+        val decoded = try {
+            Base64.getUrlDecoder().decode(cursor).decodeToString()
+        } catch (e: IllegalArgumentException) {
+            throw IllegalArgumentException("Malformed cursor", e)
+        }
+        val date = decoded.substringBefore(':').toLongOrNull() ?: throw IllegalArgumentException("Malformed cursor")
+        return Entry(date, decoded.substringAfter(':'))
+    }
+}
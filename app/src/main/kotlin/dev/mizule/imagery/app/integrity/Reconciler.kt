@@ -0,0 +1,201 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.integrity
+
+import dev.mizule.imagery.app.analysis.FileSniffer
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.StorageBackend
+import dev.mizule.imagery.app.storage.StoredObject
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Brings storage and the index back in line after a crash or a damaged index file.
+ *
+ * Stored files without an index entry are indexed again with metadata inferred from the file and its header, owned by
+ * [ORPHAN_OWNER]. Nothing records whether they were signed-only, so they are quarantined as signed-only and only served
+ * through links an admin mints. Index entries without a stored file are only reported, since the file may still turn up.
+ * Listing and checking run on a dedicated fork-join pool sized for I/O rather than CPU.
+ */
+class Reconciler(
+    private val index: FileIndex,
+    private val storage: StorageBackend,
+) {
+    private val running = AtomicBoolean()
+
+    /** The report of the last reconciliation that completed, if any did since the start. */
+    @Volatile
+    var lastReport: Report? = null
+        private set
+
+    val isRunning: Boolean
+        get() = running.get()
+
+    /**
+     * Runs one reconciliation, or returns `null` if one is already running.
+     */
+    fun reconcile(): Report? {
+        if (!running.compareAndSet(false, true)) {
+            return null
+        }
+        return runClaimed()
+    }
+
+    /**
+     * Starts a reconciliation on [executor], or returns `false` if one is already running.
+     */
+    fun start(executor: Executor): Boolean {
+        if (!running.compareAndSet(false, true)) {
+            return false
+        }
+        try {
+            executor.execute {
+                try {
+                    runClaimed()
+                } catch (e: Exception) {
+                    logger.error(e) { "Reconciliation failed" }
+                }
+            }
+        } catch (e: Exception) {
+            running.set(false)
+            throw e
+        }
+        return true
+    }
+
+    private fun runClaimed(): Report {
+        val pool = ForkJoinPool(PARALLELISM)
+        try {
+            return reconcile(pool).also { lastReport = it }
+        } finally {
+            pool.shutdown()
+            running.set(false)
+        }
+    }
+
+    private fun reconcile(pool: ForkJoinPool): Report {
+        val started = System.currentTimeMillis()
+        // taken before listing, so files stored while listing are at most mistaken for orphans, which the grace period covers
+        val files = index.snapshot()
+        val ids = files.mapTo(HashSet()) { it.id }
+        // uploads that share stored bytes reference another upload's key
+        val referenced = files.mapTo(HashSet()) { it.storageKey }
+        val stored = ConcurrentHashMap<String, StoredObject>()
+        val listed = try {
+            pool.submit { storage.list { stored[it.key] = it } }.join()
+            true
+        } catch (e: UnsupportedOperationException) {
+            logger.warn { "Storage cannot be listed, only checking for index entries without files" }
+            false
+        }
+
+        val unindexed = stored.values.asSequence()
+            .filter { it.lastModified < started - GRACE_PERIOD_MILLIS && !it.key.startsWith('.') }
+            .filter { idOf(it.key) !in ids && it.key !in referenced }
+            .distinctBy { idOf(it.key) }
+            .filter { idOf(it.key) !in index }
+            .toList()
+        val orphans = pool.submit(Callable { unindexed.parallelStream().map(::inferMetadata).toList() }).join()
+        if (orphans.isNotEmpty()) {
+            index.putAll(orphans)
+            logger.warn { "Indexed ${orphans.size} stored files that had no index entry" }
+        }
+
+        val dangling = pool.submit(
+            Callable {
+                ids.parallelStream()
+                    .filter { id ->
+                        val file = index[id] ?: return@filter false
+                        if (listed && file.storageKey in stored) false else !storage.exists(file.storageKey)
+                    }
+                    .toList()
+            },
+        ).join()
+        if (dangling.isNotEmpty()) {
+            logger.warn { "${dangling.size} index entries have no stored file: ${dangling.take(20).joinToString()}" }
+        }
+
+        val report = Report(
+            listed,
+            if (listed) stored.size else -1,
+            ids.size,
+            orphans.map { it.id },
+            dangling.sorted(),
+            System.currentTimeMillis() - started,
+        )
+        logger.info { "Reconciled ${report.indexed} index entries against ${report.stored} stored files in ${report.durationMillis} ms" }
+        return report
+    }
+
+    private fun inferMetadata(stored: StoredObject): UploadedFile {
+        val id = idOf(stored.key)
+        val extension = stored.key.substring(id.length)
+        val header = storage.getRange(stored.key, 0, FileSniffer.HEADER_SIZE.toLong())?.use { it.readAllBytes() }
+        val sniffed = header?.let { FileSniffer.sniff(it) }
+        return UploadedFile(
+            id,
+            ORPHAN_OWNER,
+            stored.lastModified,
+            stored.key,
+            stored.key,
+            extension,
+            sniffed?.mimeType ?: FileSniffer.typeOfUnrecognized(stored.key),
+            stored.size,
+            width = sniffed?.width,
+            height = sniffed?.height,
+            signedOnly = true,
+        )
+    }
+
+    private fun idOf(key: String): String = key.substringAfterLast('/').substringBefore('.')
+
+    /**
+     * @param stored the number of stored files, `-1` if storage could not be listed
+     * @param reindexed the ids of stored files that were indexed again
+     * @param dangling the ids of index entries without a stored file
+     */
+    data class Report(
+        val listed: Boolean,
+        val stored: Int,
+        val indexed: Int,
+        val reindexed: List<String>,
+        val dangling: List<String>,
+        val durationMillis: Long,
+    )
+
+    companion object {
+        const val ORPHAN_OWNER = "orphaned"
+        private val GRACE_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(5)
+        private val PARALLELISM = Runtime.getRuntime().availableProcessors().coerceAtLeast(2) * 4
+    }
+}
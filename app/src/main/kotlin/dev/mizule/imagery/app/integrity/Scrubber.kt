@@ -0,0 +1,237 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.integrity
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import dev.mizule.imagery.app.config.ScrubberConfig
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.StorageBackend
+import dev.mizule.imagery.app.util.Hashing
+import dev.mizule.imagery.app.util.Throttle
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.Closeable
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import kotlin.io.path.createDirectories
+import kotlin.io.path.exists
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Re-reads every stored file in the background and compares it against the size and checksum in the index.
+ *
+ * Files are visited in id order on a single minimum priority thread, reading at most
+ * [ScrubberConfig.bytesPerSecond]. The position is persisted so a restart continues where the last run
+ * stopped. Files indexed before checksums were recorded get theirs filled in on their first visit.
+ */
+class Scrubber(
+    private val config: ScrubberConfig,
+    private val index: FileIndex,
+    private val storage: StorageBackend,
+    private val mapper: ObjectMapper,
+) : FileIndex.Listener, Closeable {
+    private val statePath = Path.of(config.statePath)
+    private val quarantine = config.quarantinePath.takeIf { it.isNotEmpty() }?.let { Path.of(it) }
+    private val thread = Thread(::run, "Imagery Scrubber").apply {
+        isDaemon = true
+        priority = Thread.MIN_PRIORITY
+    }
+
+    private val problems = ConcurrentHashMap<String, String>()
+    private val checkedFiles = LongAdder()
+    private val checkedBytes = LongAdder()
+
+    @Volatile
+    private var cursor = ""
+
+    @Volatile
+    private var passes = 0L
+
+    @Volatile
+    private var lastPassCompleted = 0L
+
+    private val throttle = Throttle(config.bytesPerSecond)
+
+    fun start() {
+        if (statePath.exists()) {
+            val state: State = mapper.readValue(statePath.toFile())
+            cursor = state.cursor
+            passes = state.passes
+            lastPassCompleted = state.lastPassCompleted
+            problems.putAll(state.problems)
+        }
+        index.addListener(this)
+        thread.start()
+    }
+
+    fun status() = Status(cursor, passes, lastPassCompleted, checkedFiles.sum(), checkedBytes.sum(), problems.toMap())
+
+    override fun added(file: UploadedFile) {
+    }
+
+    override fun removed(file: UploadedFile) {
+        problems.remove(file.id)
+    }
+
+    private fun run() {
+        try {
+            while (true) {
+                scrubPass()
+                Thread.sleep(TimeUnit.MINUTES.toMillis(config.passIntervalMinutes))
+            }
+        } catch (e: InterruptedException) {
+            // closed
+        }
+    }
+
+    private fun scrubPass() {
+        logger.info { if (cursor.isEmpty()) "Starting a scrub pass" else "Resuming the scrub pass after $cursor" }
+        throttle.reset()
+        var lastPersist = System.currentTimeMillis()
+        for (id in index.ids().filter { it > cursor }.sorted()) {
+            index[id]?.let(::verify)
+            if (Thread.interrupted()) {
+                // the read of this file was cut short, so it is visited again on the next run
+                throw InterruptedException()
+            }
+            cursor = id
+            if (System.currentTimeMillis() - lastPersist > PERSIST_INTERVAL_MILLIS) {
+                persist()
+                lastPersist = System.currentTimeMillis()
+            }
+        }
+        cursor = ""
+        passes++
+        lastPassCompleted = System.currentTimeMillis()
+        persist()
+        logger.info { "Scrub pass complete, ${problems.size} files with problems" }
+    }
+
+    private fun verify(file: UploadedFile) {
+        val size = try {
+            storage.size(file.storageKey)
+        } catch (e: IOException) {
+            logger.warn(e) { "Could not check ${file.fileName}" }
+            return
+        }
+        if (size == null) {
+            report(file, "missing")
+            return
+        }
+        if (file.size >= 0 && size != file.size) {
+            report(file, "size $size, expected ${file.size}")
+            return
+        }
+
+        // a range read bypasses read-through caches, so scrubbing doesn't evict the files that are actually served
+        val digest = Hashing.sha256()
+        try {
+            val input = storage.getRange(file.storageKey, 0, size) ?: return report(file, "missing")
+            input.use {
+                val buffer = ByteArray(BUFFER_SIZE)
+                while (true) {
+                    val read = it.read(buffer)
+                    if (read < 0) {
+                        break
+                    }
+                    digest.update(buffer, 0, read)
+                    checkedBytes.add(read.toLong())
+                    throttle.acquire(read)
+                }
+            }
+        } catch (e: IOException) {
+            logger.warn(e) { "Could not read ${file.fileName}" }
+            return
+        }
+        checkedFiles.increment()
+
+        val actual = Hashing.hex(digest)
+        when {
+            file.sha256 == null -> {
+                // only fill in the checksum if the entry wasn't replaced or removed while it was read
+                if (index[file.id] == file) {
+                    index.put(file.copy(sha256 = actual, size = size))
+                }
+            }
+            file.sha256 != actual -> report(file, "checksum $actual, expected ${file.sha256}")
+            else -> problems.remove(file.id)
+        }
+    }
+
+    private fun report(file: UploadedFile, problem: String) {
+        logger.error { "Integrity check failed for ${file.fileName}: $problem" }
+        problems[file.id] = problem
+        if (quarantine != null && problem != "missing") {
+            try {
+                quarantine.createDirectories()
+                storage.get(file.storageKey)?.use {
+                    Files.copy(it, quarantine.resolve(file.storageKey), StandardCopyOption.REPLACE_EXISTING)
+                }
+                storage.delete(file.storageKey)
+                logger.warn { "Moved ${file.storageKey} to $quarantine" }
+            } catch (e: IOException) {
+                logger.error(e) { "Could not quarantine ${file.fileName}" }
+            }
+        }
+    }
+
+    private fun persist() {
+        val state = State(cursor, passes, lastPassCompleted, problems.toMap())
+        val temp = Files.createTempFile(statePath.toAbsolutePath().parent, "scrubber-", ".tmp")
+        mapper.writeValue(temp.toFile(), state)
+        Files.move(temp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    override fun close() {
+        if (thread.isAlive) {
+            thread.interrupt()
+            thread.join()
+            persist()
+        }
+    }
+
+    data class Status(
+        val cursor: String,
+        val passes: Long,
+        val lastPassCompleted: Long,
+        val checkedFiles: Long,
+        val checkedBytes: Long,
+        val problems: Map<String, String>,
+    )
+
+    data class State(
+        val cursor: String = "",
+        val passes: Long = 0,
+        val lastPassCompleted: Long = 0,
+        val problems: Map<String, String> = emptyMap(),
+    )
+}
@@ -0,0 +1,209 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.launcher
+
+import dev.mizule.imagery.app.util.ClasspathManifest
+import dev.mizule.imagery.app.util.ImageryDependencies
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.io.path.absolutePathString
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+import kotlin.io.path.readText
+import kotlin.io.path.writeText
+import kotlin.system.exitProcess
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * AppCDS support: a training run dumps a dynamic archive for the resolved classpath, and later launches
+ * re-exec themselves with that archive as long as the dependency set, the JVM and the jars still match.
+ *
+ * CDS only archives classes from the launch classpath, so both the training run and the archived launch
+ * put the libraries on `-cp` rather than appending them at runtime. That costs a second JVM startup, so the
+ * training run times both ways of launching from the first JVM's start and only keeps the archive when
+ * relaunching with it is faster than resolving the libraries at runtime.
+ */
+object ClassDataSharing {
+    /** Set on child JVMs whose `-cp` already contains every library. Native executables never need them resolved. */
+    const val CLASSPATH_PROPERTY = "imagery.classpath.resolved"
+
+    /** Epoch millis at which the outermost launcher JVM started, used for time-to-first-request. */
+    const val LAUNCH_START_PROPERTY = "imagery.launch.start"
+
+    /** The file a training run writes its time-to-first-request to, in millis. */
+    const val REPORT_PROPERTY = "imagery.training.report"
+
+    /** Set on the launches a training run times, to how they launch: [MEASURE_RUNTIME] or [MEASURE_ARCHIVE]. */
+    const val MEASURE_PROPERTY = "imagery.training.measure"
+
+    /** Resolves and appends the libraries at runtime, like a launch without an archive. */
+    const val MEASURE_RUNTIME = "runtime"
+
+    /** Relaunches with the archive, like a launch with a matching archive. */
+    const val MEASURE_ARCHIVE = "archive"
+
+    private const val MEASURE_RUNS = 3
+
+    private const val ARCHIVE_FILE = "imagery.jsa"
+    private const val STAMP_FILE = "imagery.jsa.stamp"
+
+    val classpathResolved: Boolean
+        get() = System.getProperty(CLASSPATH_PROPERTY).toBoolean() || NativeImage.inImage
+
+    val launchStart: Long
+        get() = System.getProperty(LAUNCH_START_PROPERTY)?.toLongOrNull() ?: ManagementFactory.getRuntimeMXBean().startTime
+
+    /** How this launch is being timed by a training run, or `null` if it isn't. */
+    val measuredLaunch: String?
+        get() = System.getProperty(MEASURE_PROPERTY)
+
+    /**
+     * Runs the training workload in a child JVM that dumps the archive on exit, then times the training workload
+     * launched without and with the archive, keeping the archive only if launching with it is faster.
+     * The libraries must already be resolved into [cacheDir].
+     */
+    fun train(cacheDir: Path, args: Array<String>) {
+        val archive = cacheDir.resolve(ARCHIVE_FILE)
+        val stampFile = cacheDir.resolve(STAMP_FILE)
+        stampFile.deleteIfExists()
+        val libraries = libraries(cacheDir)
+        val exitCode = fork(libraries, listOf("-XX:ArchiveClassesAtExit=${archive.absolutePathString()}"), args)
+        check(exitCode == 0 && archive.exists()) { "Training run failed with exit code $exitCode" }
+        stampFile.writeText(stamp(libraries))
+        logger.info { "Wrote class data sharing archive to $archive" }
+
+        val runtime = measure(MEASURE_RUNTIME, args)
+        val archived = measure(MEASURE_ARCHIVE, args)
+        logger.info {
+            "Time from launch to first request over $MEASURE_RUNS runs: $runtime ms resolving the libraries at runtime, " +
+                "$archived ms relaunching with the archive (median)"
+        }
+        if (archived >= runtime) {
+            stampFile.deleteIfExists()
+            archive.deleteIfExists()
+            logger.info { "Relaunching with the archive is not faster here, so launches will not use it" }
+        }
+    }
+
+    /**
+     * Re-executes the launcher with the archive when one matching the current dependencies exists,
+     * exiting with the child's exit code. Returns normally if the archive cannot be used.
+     *
+     * The libraries are not checksummed here: the stamp records their sizes and modification times as of the
+     * training run, which verified them, so any change to them invalidates the archive instead.
+     */
+    fun relaunchWithArchive(cacheDir: Path, args: Array<String>) {
+        val archive = cacheDir.resolve(ARCHIVE_FILE)
+        val stampFile = cacheDir.resolve(STAMP_FILE)
+        if (classpathResolved || !archive.exists() || !stampFile.exists()) {
+            return
+        }
+        val libraries = try {
+            libraries(cacheDir)
+        } catch (e: IllegalStateException) {
+            logger.warn { "Not using the class data sharing archive: ${e.message}" }
+            return
+        }
+        if (stampFile.readText() != stamp(libraries)) {
+            return
+        }
+        exitProcess(fork(libraries, listOf("-XX:SharedArchiveFile=${archive.absolutePathString()}", "-Xshare:auto"), args))
+    }
+
+    /**
+     * Launches the launcher [MEASURE_RUNS] times as a fresh, unresolved launch timed as [mode], returning the
+     * median time from starting its JVM to its first answered request.
+     */
+    private fun measure(mode: String, args: Array<String>): Long {
+        val times = (1..MEASURE_RUNS).map {
+            val report = Files.createTempFile("imagery-startup-", ".txt")
+            try {
+                val properties = listOf("-D$MEASURE_PROPERTY=$mode", "-D$REPORT_PROPERTY=${report.absolutePathString()}")
+                val exitCode = run(command(System.getProperty("java.class.path"), properties, args, System.currentTimeMillis()))
+                check(exitCode == 0) { "Measuring run failed with exit code $exitCode" }
+                report.readText().trim().toLong()
+            } finally {
+                report.deleteIfExists()
+            }
+        }
+        return times.sorted()[times.size / 2]
+    }
+
+    private fun fork(libraries: List<Path>, jvmOptions: List<String>, args: Array<String>): Int {
+        val classpath = (listOf(System.getProperty("java.class.path")) + libraries.map { it.absolutePathString() })
+            .joinToString(File.pathSeparator)
+        return run(command(classpath, jvmOptions + "-D$CLASSPATH_PROPERTY=true", args, launchStart))
+    }
+
+    private fun command(classpath: String, jvmOptions: List<String>, args: Array<String>, start: Long): List<String> {
+        val java = Path.of(System.getProperty("java.home"), "bin", "java").absolutePathString()
+        return buildList {
+            add(java)
+            addAll(ManagementFactory.getRuntimeMXBean().inputArguments)
+            addAll(jvmOptions)
+            add("-D$LAUNCH_START_PROPERTY=$start")
+            add("-cp")
+            add(classpath)
+            add("dev.mizule.imagery.app.launcher.Launcher")
+            addAll(args)
+        }
+    }
+
+    private fun run(command: List<String>): Int {
+        val process = ProcessBuilder(command).inheritIO().start()
+        val hook = Thread(process::destroy)
+        Runtime.getRuntime().addShutdownHook(hook)
+        try {
+            return process.waitFor()
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook)
+            } catch (e: IllegalStateException) {
+                // already shutting down, the hook stops the child
+            }
+        }
+    }
+
+    /**
+     * The libraries of the classpath manifest for the current dependencies, without verifying them.
+     */
+    private fun libraries(cacheDir: Path): List<Path> {
+        val manifest = ClasspathManifest.read(ImageryDependencies.manifestPath(cacheDir))
+            ?.takeIf { it.dependencyHash == ImageryDependencies.dependencyHash() }
+        checkNotNull(manifest) { "No classpath manifest for the current dependencies in $cacheDir" }
+        return manifest.entries.map { cacheDir.resolve(it.path) }
+    }
+
+    // the app's own classes are archived too, so a rebuilt jar needs a new archive, and so does a changed library
+    private fun stamp(libraries: List<Path>): String {
+        val files = System.getProperty("java.class.path").split(File.pathSeparator).map(::File) + libraries.map(Path::toFile)
+        return "${ImageryDependencies.dependencyHash()} ${System.getProperty("java.vm.version")} " +
+            files.joinToString(",") { "${it.lastModified()}:${it.length()}" }
+    }
+}
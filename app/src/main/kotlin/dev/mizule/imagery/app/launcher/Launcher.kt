@@ -27,17 +27,15 @@
 package dev.mizule.imagery.app.launcher
 
 import dev.mizule.imagery.app.App
-import dev.mizule.imagery.app.config.Config
+import dev.mizule.imagery.app.config.ConfigLoader
 import dev.mizule.imagery.app.util.AppClassPathAppender
 import dev.mizule.imagery.app.util.ImageryDependencies
+import dev.mizule.imagery.app.util.LibraryMerger
 import kotlinx.cli.ArgParser
 import kotlinx.cli.ArgType
 import kotlinx.cli.default
-import org.spongepowered.configurate.hocon.HoconConfigurationLoader
-import org.spongepowered.configurate.kotlin.extensions.get
-import org.spongepowered.configurate.kotlin.objectMapperFactory
+import java.nio.file.Path
 import kotlin.io.path.Path
-import kotlin.io.path.exists
 
 fun main(args: Array<String>) {
     val parser = ArgParser("imagery")
@@ -53,38 +51,76 @@ fun main(args: Array<String>) {
         description = "The user configuration file path, created if not present.",
     )
         .default("./users.json")
+    val offlineOption by parser.option(
+        ArgType.Boolean,
+        fullName = "offline",
+        description = "Only use the verified libraries from the classpath manifest, never resolve.",
+    )
+        .default(false)
+    val trainingRunOption by parser.option(
+        ArgType.Boolean,
+        fullName = "training-run",
+        description = "Exercise upload and serve on a temporary directory and dump a class data sharing archive.",
+    )
+        .default(false)
+    val noCdsOption by parser.option(
+        ArgType.Boolean,
+        fullName = "no-cds",
+        description = "Do not relaunch with the class data sharing archive, even if one matches.",
+    )
+        .default(false)
+    val mergeLibrariesOption by parser.option(
+        ArgType.Boolean,
+        fullName = "merge-libraries",
+        description = "Add the libraries as one merged jar, rebuilt when the dependencies change.",
+    )
+        .default(false)
+    val restoreOption by parser.option(
+        ArgType.Boolean,
+        fullName = "restore",
+        description = "Restore the latest snapshot into storage and the index, then exit.",
+    )
+        .default(false)
     parser.parse(args)
 
-    // load dependencies
-    downloadDependencies()
-
-    val configPath = Path(configPathOption)
-    val configLoader = HoconConfigurationLoader.builder()
-        .path(configPath)
-        .defaultOptions { options ->
-            options.shouldCopyDefaults(true)
-            options.serializers { builder ->
-                builder.registerAnnotatedObjects(objectMapperFactory())
-            }
-        }
-        .build()
+    val librariesPath = Path("libraries")
+    // the launches a training run times go on to run the workload like any other launch would
+    val measuredLaunch = ClassDataSharing.measuredLaunch
+    if (trainingRunOption && !ClassDataSharing.classpathResolved && measuredLaunch == null) {
+        downloadDependencies(librariesPath, offlineOption)
+        ClassDataSharing.train(librariesPath, args)
+        return
+    }
+    if (!noCdsOption && (!trainingRunOption || measuredLaunch == ClassDataSharing.MEASURE_ARCHIVE)) {
+        ClassDataSharing.relaunchWithArchive(librariesPath, args)
+    }
 
-    val configNode = configLoader.load()
-    val config = requireNotNull(configNode.get<Config>()) {
-        "Could not read configuration"
+    // load dependencies, unless a parent launcher already put them on our classpath
+    if (!ClassDataSharing.classpathResolved) {
+        downloadDependencies(librariesPath, offlineOption, mergeLibrariesOption)
     }
 
-    if (!configPath.exists()) {
-        configNode.set(config) // update the backing node to add defaults
-        configLoader.save(configNode)
+    if (trainingRunOption) {
+        TrainingRun.run()
+        return
     }
 
-    val app = App(config, usersPathOption)
+    val configPath = Path(configPathOption)
+    val app = App(ConfigLoader.load(configPath), usersPathOption, configPath)
+    if (restoreOption) {
+        app.restore()
+        return
+    }
     Runtime.getRuntime().addShutdownHook(Thread(app::stop))
 
     app.start()
 }
 
-fun downloadDependencies() {
-    AppClassPathAppender().append(ImageryDependencies.resolve(Path("libraries")))
+fun downloadDependencies(librariesPath: Path = Path("libraries"), offline: Boolean = false, merge: Boolean = false) {
+    val libraries = ImageryDependencies.resolve(librariesPath, offline)
+    if (merge) {
+        AppClassPathAppender().append(LibraryMerger.merge(librariesPath, ImageryDependencies.dependencyHash(), libraries))
+    } else {
+        AppClassPathAppender().append(libraries)
+    }
 }
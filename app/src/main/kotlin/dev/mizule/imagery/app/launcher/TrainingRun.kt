@@ -0,0 +1,132 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.launcher
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import dev.mizule.imagery.app.App
+import dev.mizule.imagery.app.config.BackupConfig
+import dev.mizule.imagery.app.config.ChunkedUploadConfig
+import dev.mizule.imagery.app.config.Config
+import dev.mizule.imagery.app.config.MetadataCacheConfig
+import dev.mizule.imagery.app.config.QuotaConfig
+import dev.mizule.imagery.app.config.ScrubberConfig
+import dev.mizule.imagery.app.config.SegmentConfig
+import dev.mizule.imagery.app.config.StorageConfig
+import dev.mizule.imagery.app.config.ViewStatsConfig
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.net.ServerSocket
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.Base64
+import kotlin.io.path.ExperimentalPathApi
+import kotlin.io.path.deleteRecursively
+import kotlin.io.path.writeText
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Boots the app on a temporary directory and exercises upload and serve, so every class on those
+ * paths gets loaded (and archived when running under `-XX:ArchiveClassesAtExit`). Native builds run
+ * it as their smoke test.
+ */
+object TrainingRun {
+    private const val ITERATIONS = 50
+    private const val TOKEN = "training"
+    private const val BOUNDARY = "imagery-training-boundary"
+
+    // 1x1 transparent PNG
+    private val SAMPLE_PNG = Base64.getDecoder()
+        .decode("iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==")
+
+    @OptIn(ExperimentalPathApi::class)
+    fun run() {
+        val workDir = Files.createTempDirectory("imagery-training")
+        val port = ServerSocket(0).use { it.localPort }
+        val usersPath = workDir.resolve("users.json")
+        usersPath.writeText("""{"users":[{"username":"training","token":"$TOKEN"}]}""")
+
+        val config = Config(
+            port = port,
+            baseUrl = "http://127.0.0.1:$port",
+            indexPath = workDir.resolve("files.json").toString(),
+            storagePath = workDir.resolve("storage").toString(),
+            storage = StorageConfig(
+                cachePath = workDir.resolve("cache").toString(),
+                segments = SegmentConfig(path = workDir.resolve("segments").toString()),
+            ),
+            chunkedUploads = ChunkedUploadConfig(path = workDir.resolve("uploads").toString()),
+            quotas = QuotaConfig(usagePath = workDir.resolve("usage.json").toString()),
+            metadataCache = MetadataCacheConfig(hotSetPath = workDir.resolve("hotset.json").toString()),
+            views = ViewStatsConfig(enabled = true, path = workDir.resolve("views.json").toString()),
+            scrubber = ScrubberConfig(statePath = workDir.resolve("scrubber.json").toString()),
+            backup = BackupConfig(path = workDir.resolve("backups").toString()),
+        )
+        val app = App(config, usersPath.toString())
+        try {
+            app.start()
+            exercise(config)
+        } finally {
+            app.stop()
+            workDir.deleteRecursively()
+        }
+    }
+
+    private fun exercise(config: Config) {
+        val client = HttpClient.newHttpClient()
+        val mapper = jacksonObjectMapper()
+        val body = "--$BOUNDARY\r\n".toByteArray() +
+            "Content-Disposition: form-data; name=\"file\"; filename=\"training.png\"\r\n".toByteArray() +
+            "Content-Type: image/png\r\n\r\n".toByteArray() +
+            SAMPLE_PNG +
+            "\r\n--$BOUNDARY--\r\n".toByteArray()
+
+        repeat(ITERATIONS) { iteration ->
+            val upload = client.send(
+                HttpRequest.newBuilder(URI.create("${config.baseUrl}/upload"))
+                    .header("Authorization", TOKEN)
+                    .header("Content-Type", "multipart/form-data; boundary=$BOUNDARY")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build(),
+                HttpResponse.BodyHandlers.ofString(),
+            )
+            check(upload.statusCode() == 200) { "Training upload failed with status ${upload.statusCode()}" }
+            if (iteration == 0) {
+                val elapsed = System.currentTimeMillis() - ClassDataSharing.launchStart
+                logger.info { "Training run answered its first request $elapsed ms after launch" }
+                System.getProperty(ClassDataSharing.REPORT_PROPERTY)?.let { Path.of(it).writeText(elapsed.toString()) }
+            }
+
+            val url = mapper.readTree(upload.body())["data"]["url"].asText()
+            val serve = client.send(HttpRequest.newBuilder(URI.create(url)).GET().build(), HttpResponse.BodyHandlers.ofByteArray())
+            check(serve.statusCode() == 200 && serve.body().contentEquals(SAMPLE_PNG)) {
+                "Training serve failed with status ${serve.statusCode()}"
+            }
+        }
+    }
+}
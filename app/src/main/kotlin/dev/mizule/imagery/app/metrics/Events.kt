@@ -0,0 +1,134 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.metrics
+
+import jdk.jfr.Category
+import jdk.jfr.DataAmount
+import jdk.jfr.Description
+import jdk.jfr.Event
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+import jdk.jfr.Timespan
+
+// Flight Recorder reads event fields directly, hence the @JvmField properties.
+
+@Name("dev.mizule.imagery.Upload")
+@Label("Upload")
+@Category("Imagery")
+@StackTrace(false)
+class UploadEvent : Event() {
+    @JvmField
+    @field:Label("User")
+    var user: String? = null
+
+    @JvmField
+    @field:Label("Files")
+    var files: Int = 0
+
+    @JvmField
+    @field:Label("Bytes")
+    @field:DataAmount
+    var bytes: Long = 0
+
+    @JvmField
+    @field:Label("Authentication")
+    @field:Description("Authenticating and checking the quota")
+    @field:Timespan
+    var auth: Long = 0
+
+    @JvmField
+    @field:Label("Multipart Parsing")
+    @field:Timespan
+    var parse: Long = 0
+
+    @JvmField
+    @field:Label("Storage Write")
+    @field:Timespan
+    var write: Long = 0
+
+    @JvmField
+    @field:Label("Indexing")
+    @field:Timespan
+    var index: Long = 0
+}
+
+@Name("dev.mizule.imagery.Serve")
+@Label("Serve")
+@Category("Imagery")
+@StackTrace(false)
+class ServeEvent : Event() {
+    @JvmField
+    @field:Label("Name")
+    var name: String? = null
+
+    @JvmField
+    @field:Label("Status")
+    var status: Int = 0
+
+    @JvmField
+    @field:Label("Size")
+    @field:DataAmount
+    var size: Long = 0
+
+    @JvmField
+    @field:Label("Lookup")
+    @field:Timespan
+    var lookup: Long = 0
+
+    @JvmField
+    @field:Label("Storage Open")
+    @field:Timespan
+    var storage: Long = 0
+}
+
+@Name("dev.mizule.imagery.CacheMiss")
+@Label("Metadata Cache Miss")
+@Category("Imagery")
+@StackTrace(false)
+class CacheMissEvent : Event() {
+    @JvmField
+    @field:Label("Name")
+    var name: String? = null
+
+    @JvmField
+    @field:Label("Found")
+    var found: Boolean = false
+}
+
+@Name("dev.mizule.imagery.IndexSave")
+@Label("Index Save")
+@Category("Imagery")
+@StackTrace(false)
+class IndexSaveEvent : Event() {
+    @JvmField
+    @field:Label("Entries")
+    var entries: Int = 0
+
+    @JvmField
+    @field:Label("Size")
+    @field:DataAmount
+    var size: Long = 0
+}
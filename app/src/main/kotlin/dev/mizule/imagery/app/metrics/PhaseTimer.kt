@@ -0,0 +1,66 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.metrics
+
+import java.util.Locale
+
+/**
+ * Splits the time spent on one request into named phases, each lasting from the previous [mark] to the next.
+ *
+ * Requests nobody looks at the phases of share [NONE], which records nothing.
+ */
+open class PhaseTimer {
+    private var last = System.nanoTime()
+    private val names = ArrayList<String>(4)
+    private val durations = ArrayList<Long>(4)
+
+    /**
+     * Ends the phase [name], returning how long it took in nanoseconds.
+     */
+    open fun mark(name: String): Long {
+        val now = System.nanoTime()
+        val duration = now - last
+        last = now
+        names += name
+        durations += duration
+        return duration
+    }
+
+    /**
+     * The phases in the format of a Server-Timing header, in milliseconds.
+     */
+    open fun serverTiming(): String = names.indices.joinToString(", ") { i ->
+        String.format(Locale.ROOT, "%s;dur=%.2f", names[i], durations[i] / 1_000_000.0)
+    }
+
+    companion object {
+        /** A timer that measures nothing, for when neither Server-Timing nor the JFR events are on. */
+        val NONE: PhaseTimer = object : PhaseTimer() {
+            override fun mark(name: String): Long = 0
+
+            override fun serverTiming(): String = ""
+        }
+    }
+}
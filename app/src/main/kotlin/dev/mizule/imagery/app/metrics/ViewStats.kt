@@ -0,0 +1,272 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.metrics
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import dev.mizule.imagery.app.config.ViewStatsConfig
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.io.path.exists
+
+/**
+ * Counts views per upload, and estimates which uploads were viewed the most recently.
+ *
+ * Recording a view only bumps a [LongAdder] and a few slots of the current minute's count-min sketch, without
+ * waiting on locks or touching the index. Exact totals are folded into [ViewStatsConfig.path] in batches by
+ * [persist]. Recent counts come from one sketch per minute over the last [ViewStatsConfig.windowMinutes], so
+ * they may overestimate, never underestimate, and are lost on restart. Each minute also keeps a bounded set of
+ * its most viewed uploads, so trending only has to estimate those.
+ */
+class ViewStats(
+    private val config: ViewStatsConfig,
+    private val mapper: ObjectMapper,
+    private val clock: () -> Long = System::currentTimeMillis,
+) : FileIndex.Listener {
+    private val pending = ConcurrentHashMap<String, LongAdder>()
+    private val totals = ConcurrentHashMap<String, Long>()
+    private val path = Path.of(config.path)
+    private val window = config.windowMinutes.coerceAtLeast(1)
+
+    // one more than the window, for the coming minute that is cleared ahead of time
+    private val sketches = Array(window + 1) { CountMinSketch(config.sketchWidth) }
+    private val candidates = Array(sketches.size) { TopK(config.trendingCandidates.coerceAtLeast(1)) }
+    private val stamps = AtomicLongArray(sketches.size)
+
+    init {
+        stamps.set(bucket(currentMinute()), currentMinute())
+        rotate()
+    }
+
+    /**
+     * Loads the persisted totals and starts forgetting the views of deleted uploads.
+     */
+    fun attach(index: FileIndex) {
+        if (path.exists()) {
+            totals.putAll(mapper.readValue<Map<String, Long>>(path.toFile()))
+        }
+        index.addListener(this)
+    }
+
+    fun record(id: String) {
+        val counter = pending[id] ?: pending.computeIfAbsent(id) { LongAdder() }
+        counter.increment()
+        val bucket = bucket(currentMinute())
+        candidates[bucket].offer(id, sketches[bucket].add(id))
+    }
+
+    fun views(id: String): Views = Views(id, (totals[id] ?: 0) + (pending[id]?.sum() ?: 0), recent(id, window))
+
+    /**
+     * The [limit] uploads with the most views over the last [minutes], most viewed first.
+     */
+    fun trending(limit: Int, minutes: Int): List<Views> {
+        val top = PriorityQueue<Views>(compareBy { it.recent })
+        // an upload viewed a lot over the window was among the most viewed of at least one of its minutes
+        val minute = currentMinute()
+        val ids = HashSet<String>()
+        for (ago in 0 until minutes.coerceIn(1, window)) {
+            val bucket = bucket(minute - ago)
+            if (stamps.get(bucket) == minute - ago) {
+                ids += candidates[bucket].ids()
+            }
+        }
+        for (id in ids) {
+            val recent = recent(id, minutes)
+            if (recent == 0L || top.size >= limit && recent <= top.peek().recent) {
+                continue
+            }
+            top.add(Views(id, 0, recent))
+            if (top.size > limit) {
+                top.poll()
+            }
+        }
+        return top.sortedByDescending { it.recent }.map { views(it.id).copy(recent = it.recent) }
+    }
+
+    private fun recent(id: String, minutes: Int): Long {
+        val minute = currentMinute()
+        var sum = 0L
+        for (ago in 0 until minutes.coerceIn(1, window)) {
+            val bucket = bucket(minute - ago)
+            if (stamps.get(bucket) == minute - ago) {
+                sum += sketches[bucket].estimate(id)
+            }
+        }
+        return sum
+    }
+
+    /**
+     * Clears the sketch of the coming minute ahead of time, so recording never has to. Called every few seconds.
+     */
+    fun rotate() {
+        val next = currentMinute() + 1
+        val bucket = bucket(next)
+        if (stamps.get(bucket) != next) {
+            sketches[bucket].clear()
+            candidates[bucket].clear()
+            stamps.set(bucket, next)
+        }
+    }
+
+    /**
+     * Folds the views counted since the last call into the totals and writes them out.
+     */
+    fun persist() {
+        pending.forEach { (id, counter) ->
+            val count = counter.sumThenReset()
+            if (count == 0L) {
+                // not viewed since the last call, so it stops taking up space until it is viewed again
+                if (pending.remove(id, counter)) {
+                    // a view that got hold of the counter just before still counts
+                    counter.sum().takeIf { it > 0 }?.let { totals.merge(id, it, Long::plus) }
+                }
+                return@forEach
+            }
+            totals.merge(id, count, Long::plus)
+            // the upload was deleted while its views were being folded in, don't bring its total back
+            if (pending[id] !== counter) {
+                totals.remove(id)
+            }
+        }
+        val temp = Files.createTempFile(path.toAbsolutePath().parent, "views-", ".tmp")
+        mapper.writeValue(temp.toFile(), totals)
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    override fun added(file: UploadedFile) {}
+
+    override fun removed(file: UploadedFile) {
+        pending.remove(file.id)
+        totals.remove(file.id)
+    }
+
+    private fun bucket(minute: Long): Int = Math.floorMod(minute, sketches.size)
+
+    private fun currentMinute(): Long = clock() / 60_000
+
+    /**
+     * @param total every view counted so far
+     * @param recent the estimated views over the requested window
+     */
+    data class Views(val id: String, val total: Long, val recent: Long)
+
+    /**
+     * Approximate counts of any number of keys in fixed space, as the minimum over [DEPTH] rows of counters.
+     */
+    private class CountMinSketch(width: Int) {
+        private val mask = Integer.highestOneBit(width.coerceAtLeast(64)) - 1
+        private val counts = AtomicLongArray(DEPTH * (mask + 1))
+
+        /**
+         * Counts [key], returning its estimate including this one.
+         */
+        fun add(key: String): Long {
+            val hash = mix(key.hashCode())
+            var min = Long.MAX_VALUE
+            for (row in 0 until DEPTH) {
+                min = minOf(min, counts.incrementAndGet(index(row, hash)))
+            }
+            return min
+        }
+
+        fun estimate(key: String): Long {
+            val hash = mix(key.hashCode())
+            var min = Long.MAX_VALUE
+            for (row in 0 until DEPTH) {
+                min = minOf(min, counts.get(index(row, hash)))
+            }
+            return min
+        }
+
+        fun clear() {
+            for (i in 0 until counts.length()) {
+                counts.set(i, 0)
+            }
+        }
+
+        // one hash per row from the two halves of a mixed one, the second made odd so it moves every row
+        private fun index(row: Int, hash: Long): Int {
+            val first = hash.toInt()
+            val second = (hash ushr 32).toInt() or 1
+            return row * (mask + 1) + ((first + row * second) and mask)
+        }
+
+        private fun mix(value: Int): Long {
+            var h = value.toLong() * -0x61c8864680b583ebL
+            h = h xor (h ushr 29)
+            h *= -0x40a7b892e31b1a47L
+            return h xor (h ushr 32)
+        }
+
+        private companion object {
+            const val DEPTH = 4
+        }
+    }
+
+    /**
+     * The at most [capacity] keys with the highest estimates offered since the last [clear]. Once full, keys
+     * estimated below the smallest kept are turned away with one read, and trimming back to [capacity] is skipped
+     * while another thread is doing it, so offering never waits.
+     */
+    private class TopK(private val capacity: Int) {
+        private val estimates = ConcurrentHashMap<String, Long>()
+        private val trimming = ReentrantLock()
+
+        @Volatile
+        private var floor = 0L
+
+        fun offer(key: String, estimate: Long) {
+            if (estimate <= floor) {
+                return
+            }
+            estimates[key] = estimate
+            if (estimates.size > capacity && trimming.tryLock()) {
+                try {
+                    val kept = estimates.entries.sortedByDescending { it.value }
+                    kept.drop(capacity).forEach { estimates.remove(it.key, it.value) }
+                    floor = kept[capacity - 1].value
+                } finally {
+                    trimming.unlock()
+                }
+            }
+        }
+
+        fun ids(): Set<String> = estimates.keys
+
+        fun clear() {
+            estimates.clear()
+            floor = 0
+        }
+    }
+}
@@ -27,4 +27,13 @@
 data class ImageLookupResult(
     val url: String,
     val delete: String = "$url/del",
+    val mimeType: String? = null,
+    val width: Int? = null,
+    val height: Int? = null,
+    val size: Long = -1,
+    val sha256: String? = null,
+    val blurHash: String? = null,
+    val dominantColor: String? = null,
+    val signedUrl: String? = null,
+    val expires: Long? = null,
 )
@@ -30,4 +30,5 @@ enum class Roles : RouteRole {
 
     PUBLIC,
     PRIVATE,
+    ADMIN,
 }
@@ -24,6 +24,7 @@
  */
 package dev.mizule.imagery.app.model
 
+import com.fasterxml.jackson.annotation.JsonIgnore
 import org.spongepowered.configurate.objectmapping.ConfigSerializable
 
 @ConfigSerializable
@@ -35,4 +36,20 @@ data class UploadedFile(
     val originalFileName: String,
     val extension: String,
     val mimeType: String,
-)
+    val size: Long = -1,
+    val sha256: String? = null,
+    val crc32: Long? = null,
+    val width: Int? = null,
+    val height: Int? = null,
+    val signedOnly: Boolean = false,
+    val blob: String? = null,
+    val blurHash: String? = null,
+    val dominantColor: String? = null,
+) {
+    /**
+     * The key the bytes are stored under, which is another upload's when the content was already stored.
+     */
+    @get:JsonIgnore
+    val storageKey: String
+        get() = blob ?: fileName
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.quota
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import dev.mizule.imagery.app.auth.User
+import dev.mizule.imagery.app.config.QuotaConfig
+import dev.mizule.imagery.app.exceptions.QuotaExceededResponse
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.javalin.http.HttpStatus
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
+import kotlin.io.path.exists
+import kotlin.io.path.getLastModifiedTime
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Per-user storage and upload rate accounting, kept up to date incrementally from the index.
+ *
+ * Counters are [LongAdder]s so concurrent uploads by one user don't contend. They are persisted to
+ * [QuotaConfig.usagePath] periodically, and rebuilt in parallel from the index when that file is missing
+ * or older than the index file, as it then misses changes.
+ */
+class UsageTracker(
+    private val config: QuotaConfig,
+    private val mapper: ObjectMapper,
+    private val sizeOf: (UploadedFile) -> Long,
+) : FileIndex.Listener {
+    private val usage = ConcurrentHashMap<String, Usage>()
+    private val path = Path.of(config.usagePath)
+
+    /**
+     * Loads the persisted usage, or rebuilds it from [index] stored at [indexPath], then starts tracking its changes.
+     */
+    fun attach(index: FileIndex, indexPath: Path) {
+        val current = path.exists() && (!indexPath.exists() || path.getLastModifiedTime() >= indexPath.getLastModifiedTime())
+        if (current) {
+            val persisted: Map<String, PersistedUsage> = mapper.readValue(path.toFile())
+            persisted.forEach { (user, counters) ->
+                usage(user).apply {
+                    bytes.add(counters.bytes)
+                    files.add(counters.files)
+                }
+            }
+        } else {
+            logger.info { "Rebuilding usage counters from the index, the persisted ones are missing or out of date" }
+            index.ids().parallelStream().forEach { id -> index[id]?.let(::added) }
+        }
+        index.addListener(this)
+    }
+
+    /**
+     * Throws if [user] may not upload [incomingFiles] more files of [incomingBytes] in total right now.
+     * [incomingBytes] is `-1` when not known yet, callers then check again once it is.
+     */
+    fun check(user: User, incomingBytes: Long, incomingFiles: Int = 1) {
+        if (!config.enabled) {
+            return
+        }
+        val current = usage(user.username)
+        val maxBytes = user.maxBytes.takeIf { it >= 0 } ?: config.maxBytes
+        if (maxBytes >= 0 && current.bytes.sum() + incomingBytes.coerceAtLeast(0) > maxBytes) {
+            throw QuotaExceededResponse("Storage quota of $maxBytes bytes exceeded")
+        }
+        val maxFiles = user.maxFiles.takeIf { it >= 0 } ?: config.maxFiles
+        if (maxFiles >= 0 && current.files.sum() + incomingFiles > maxFiles) {
+            throw QuotaExceededResponse("File quota of $maxFiles files exceeded")
+        }
+        val maxUploads = user.maxUploadsPerWindow.takeIf { it >= 0 } ?: config.maxUploadsPerWindow
+        if (maxUploads >= 0 && current.uploads.sum() + incomingFiles > maxUploads) {
+            throw QuotaExceededResponse("Upload rate of $maxUploads per ${config.windowMinutes} minutes exceeded", HttpStatus.TOO_MANY_REQUESTS)
+        }
+    }
+
+    /**
+     * Counts [count] new uploads towards [user]'s rate window.
+     */
+    fun recordUploads(user: String, count: Int) {
+        usage(user).uploads.add(count.toLong())
+    }
+
+    override fun added(file: UploadedFile) {
+        usage(file.user).apply {
+            bytes.add(sizeOf(file))
+            files.increment()
+        }
+    }
+
+    override fun removed(file: UploadedFile) {
+        usage(file.user).apply {
+            bytes.add(-sizeOf(file))
+            files.decrement()
+        }
+    }
+
+    fun persist() {
+        val snapshot = usage.mapValues { (_, it) -> PersistedUsage(it.bytes.sum(), it.files.sum()) }
+        val temp = Files.createTempFile(path.toAbsolutePath().parent, "usage-", ".tmp")
+        mapper.writeValue(temp.toFile(), snapshot)
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    private fun usage(user: String): Usage = usage.computeIfAbsent(user) { Usage(config.windowMinutes) }
+
+    data class PersistedUsage(val bytes: Long = 0, val files: Long = 0)
+
+    private class Usage(windowMinutes: Int) {
+        val bytes = LongAdder()
+        val files = LongAdder()
+        val uploads = MinuteWindow(windowMinutes)
+    }
+
+    /**
+     * A sliding count over the last [minutes] minutes, one bucket per minute.
+     *
+     * A bucket's minute and count are replaced together, so an upload counted right as a bucket is reused
+     * for a new minute lands in either the old bucket or the new one, and is never reset away.
+     */
+    private class MinuteWindow(private val minutes: Int) {
+        private val buckets = AtomicReferenceArray<Bucket>(minutes.coerceAtLeast(1))
+
+        fun add(count: Long) {
+            val minute = currentMinute()
+            val index = (minute % buckets.length()).toInt()
+            while (true) {
+                val bucket = buckets.get(index)
+                if (bucket != null && bucket.minute == minute) {
+                    bucket.count.addAndGet(count)
+                    return
+                }
+                buckets.compareAndSet(index, bucket, Bucket(minute))
+            }
+        }
+
+        fun sum(): Long {
+            val minute = currentMinute()
+            var sum = 0L
+            for (index in 0 until buckets.length()) {
+                val bucket = buckets.get(index) ?: continue
+                if (minute - bucket.minute < minutes) {
+                    sum += bucket.count.get()
+                }
+            }
+            return sum
+        }
+
+        private class Bucket(val minute: Long) {
+            val count = AtomicLong()
+        }
+
+        private fun currentMinute(): Long = System.currentTimeMillis() / 60_000
+    }
+}
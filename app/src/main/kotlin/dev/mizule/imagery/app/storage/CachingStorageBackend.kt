@@ -0,0 +1,217 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.io.path.createDirectories
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.fileSize
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.io.path.outputStream
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * A local disk read-through cache in front of a remote [delegate], bounded to [maxBytes].
+ *
+ * Full reads are served from disk, filling the cache on a miss with concurrent misses for the same key
+ * sharing one download. Uploads are written to the cache while they stream to the delegate.
+ *
+ * Every fill goes to a file of its own, named after the key plus a unique suffix, so removing an entry can delete
+ * its file without ever touching the file of a fill that replaced it.
+ */
+class CachingStorageBackend(
+    private val delegate: StorageBackend,
+    private val directory: Path,
+    maxBytes: Long,
+) : StorageBackend {
+    private val entries: Cache<String, Path> = Caffeine.newBuilder()
+        .maximumWeight(maxBytes / 1024)
+        .weigher<String, Path> { _, path -> (path.fileSize() / 1024).coerceIn(1, Int.MAX_VALUE.toLong()).toInt() }
+        .removalListener<String, Path> { _, path, _ -> path?.deleteIfExists() }
+        .build()
+    private val downloads = ConcurrentHashMap<String, CompletableFuture<Path?>>()
+
+    init {
+        directory.createDirectories()
+        for (file in directory.listDirectoryEntries()) {
+            val key = file.name.substringBeforeLast(SUFFIX_SEPARATOR, "")
+            if (file.name.startsWith('.') || key.isEmpty()) {
+                file.deleteIfExists() // unfinished fills, or files from an older layout
+            } else if (file.isRegularFile()) {
+                entries.put(key, file) // a second file for the same key replaces, and so deletes, the first
+            }
+        }
+    }
+
+    override fun put(key: String, input: InputStream, size: Long) {
+        entries.invalidate(key)
+        val temp = Files.createTempFile(directory, ".cache-", ".tmp")
+        var complete = false
+        try {
+            temp.outputStream().use { copy ->
+                TeeInputStream(input, copy).use { delegate.put(key, it, size) }
+            }
+            complete = true
+        } finally {
+            if (complete) {
+                entries.put(key, publish(key, temp))
+            } else {
+                temp.deleteIfExists()
+            }
+        }
+    }
+
+    override fun get(key: String): InputStream? {
+        val cached = entries.getIfPresent(key) ?: fill(key) ?: return null
+        try {
+            return Files.newInputStream(cached)
+        } catch (e: NoSuchFileException) {
+            // evicted between the lookup and the open, or deleted behind the cache's back
+            entries.asMap().remove(key, cached)
+        }
+        val refilled = fill(key) ?: return null
+        return try {
+            Files.newInputStream(refilled)
+        } catch (e: NoSuchFileException) {
+            delegate.get(key)
+        }
+    }
+
+    override fun getRange(key: String, offset: Long, length: Long): InputStream? {
+        val cached = entries.getIfPresent(key) ?: return delegate.getRange(key, offset, length)
+        return try {
+            val input = Files.newInputStream(cached)
+            input.skipNBytes(offset)
+            LimitedInputStream(input, length)
+        } catch (e: NoSuchFileException) {
+            delegate.getRange(key, offset, length)
+        }
+    }
+
+    override fun size(key: String): Long? {
+        entries.getIfPresent(key)?.takeIf { it.isRegularFile() }?.let { return it.fileSize() }
+        return delegate.size(key)
+    }
+
+    override fun delete(key: String): Boolean {
+        entries.invalidate(key)
+        return delegate.delete(key)
+    }
+
+    override fun list(action: (StoredObject) -> Unit) = delegate.list(action)
+
+    /**
+     * Changes the size limit, evicting files right away when it shrinks.
+     */
+    fun resize(maxBytes: Long) {
+        entries.policy().eviction().ifPresent { it.maximum = maxBytes / 1024 }
+    }
+
+    override fun close() {
+        delegate.close()
+    }
+
+    private fun fill(key: String): Path? {
+        val future = CompletableFuture<Path?>()
+        val existing = downloads.putIfAbsent(key, future)
+        if (existing != null) {
+            return existing.join()
+        }
+        try {
+            val path = delegate.get(key)?.use { input ->
+                val temp = Files.createTempFile(directory, ".cache-", ".tmp")
+                try {
+                    Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING)
+                    publish(key, temp)
+                } finally {
+                    temp.deleteIfExists()
+                }
+            }
+            path?.let { entries.put(key, it) }
+            future.complete(path)
+            return path
+        } catch (e: Exception) {
+            logger.warn(e) { "Could not cache $key" }
+            future.completeExceptionally(e)
+            throw e
+        } finally {
+            downloads.remove(key, future)
+        }
+    }
+
+    /**
+     * Moves a finished [temp] file to a path no other fill of [key] uses.
+     */
+    private fun publish(key: String, temp: Path): Path {
+        val target = Files.createTempFile(directory, key + SUFFIX_SEPARATOR, "")
+        return Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    /**
+     * Copies everything read from [input] into [copy], including what is skipped.
+     */
+    private class TeeInputStream(input: InputStream, private val copy: OutputStream) : FilterInputStream(input) {
+        override fun read(): Int = super.read().also { if (it != -1) copy.write(it) }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int = super.read(b, off, len).also { if (it > 0) copy.write(b, off, it) }
+
+        override fun skip(n: Long): Long {
+            if (n <= 0) {
+                return 0
+            }
+            val buffer = ByteArray(minOf(n, SKIP_BUFFER_SIZE.toLong()).toInt())
+            var remaining = n
+            while (remaining > 0) {
+                val read = read(buffer, 0, minOf(remaining, buffer.size.toLong()).toInt())
+                if (read < 0) {
+                    break
+                }
+                remaining -= read
+            }
+            return n - remaining
+        }
+
+        override fun markSupported(): Boolean = false
+    }
+
+    private companion object {
+        const val SUFFIX_SEPARATOR = '~'
+        const val SKIP_BUFFER_SIZE = 8192
+    }
+}
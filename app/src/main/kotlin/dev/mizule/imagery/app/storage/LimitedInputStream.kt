@@ -0,0 +1,66 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import java.io.FilterInputStream
+import java.io.InputStream
+
+/**
+ * Reads at most [limit] bytes from [input].
+ */
+class LimitedInputStream(input: InputStream, private var limit: Long) : FilterInputStream(input) {
+
+    override fun read(): Int {
+        if (limit <= 0) {
+            return -1
+        }
+        val read = super.read()
+        if (read != -1) {
+            limit--
+        }
+        return read
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (limit <= 0) {
+            return -1
+        }
+        val read = super.read(b, off, minOf(len.toLong(), limit).toInt())
+        if (read > 0) {
+            limit -= read
+        }
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = super.skip(minOf(n, limit))
+        limit -= skipped
+        return skipped
+    }
+
+    override fun available(): Int = minOf(super.available().toLong(), limit).toInt()
+
+    override fun markSupported(): Boolean = false
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import java.io.InputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+import kotlin.io.path.createDirectories
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.fileSize
+import kotlin.io.path.inputStream
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.name
+import kotlin.io.path.outputStream
+
+/**
+ * Stores every upload as its own file in [directory].
+ */
+class LocalStorageBackend(val directory: Path) : StorageBackend {
+
+    init {
+        directory.createDirectories()
+    }
+
+    fun path(key: String): Path = directory.resolve(key)
+
+    override fun put(key: String, input: InputStream, size: Long) {
+        val temp = Files.createTempFile(directory, ".upload-", ".tmp")
+        try {
+            temp.outputStream().use { input.copyTo(it) }
+            Files.move(temp, path(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            temp.deleteIfExists()
+        }
+    }
+
+    override fun putFile(key: String, file: Path) {
+        Files.move(file, path(key), StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    override fun get(key: String): InputStream? = try {
+        path(key).inputStream()
+    } catch (e: NoSuchFileException) {
+        null
+    }
+
+    override fun getRange(key: String, offset: Long, length: Long): InputStream? {
+        val channel = try {
+            FileChannel.open(path(key), StandardOpenOption.READ)
+        } catch (e: NoSuchFileException) {
+            return null
+        }
+        return LimitedInputStream(Channels.newInputStream(channel.position(offset)), length)
+    }
+
+    override fun size(key: String): Long? = path(key).takeIf { it.isRegularFile() }?.fileSize()
+
+    override fun delete(key: String): Boolean = path(key).deleteIfExists()
+
+    /**
+     * Scans the directory with fork-join tasks, in the pool of the calling thread when it is a fork-join worker.
+     */
+    override fun list(action: (StoredObject) -> Unit) {
+        DirectoryScan(directory, "", action).invoke()
+    }
+
+    /**
+     * Lists one directory, handing its entries to subtasks in batches since reading their attributes is
+     * what dominates on large directories.
+     */
+    private class DirectoryScan(
+        private val directory: Path,
+        private val prefix: String,
+        private val action: (StoredObject) -> Unit,
+    ) : RecursiveAction() {
+        override fun compute() {
+            val tasks = ArrayList<ForkJoinTask<*>>()
+            var batch = ArrayList<Path>(BATCH_SIZE)
+            Files.newDirectoryStream(directory).use { entries ->
+                for (entry in entries) {
+                    if (entry.name.startsWith('.')) {
+                        continue // in-progress writes
+                    }
+                    batch.add(entry)
+                    if (batch.size == BATCH_SIZE) {
+                        tasks += EntryBatch(batch, prefix, action).fork()
+                        batch = ArrayList(BATCH_SIZE)
+                    }
+                }
+            }
+            EntryBatch(batch, prefix, action).invoke()
+            tasks.forEach { it.join() }
+        }
+    }
+
+    private class EntryBatch(
+        private val entries: List<Path>,
+        private val prefix: String,
+        private val action: (StoredObject) -> Unit,
+    ) : RecursiveAction() {
+        override fun compute() {
+            val directories = ArrayList<ForkJoinTask<*>>()
+            for (entry in entries) {
+                val attributes = try {
+                    Files.readAttributes(entry, BasicFileAttributes::class.java, LinkOption.NOFOLLOW_LINKS)
+                } catch (e: NoSuchFileException) {
+                    continue // deleted while listing
+                }
+                if (attributes.isDirectory) {
+                    directories += DirectoryScan(entry, "$prefix${entry.name}/", action).fork()
+                } else if (attributes.isRegularFile) {
+                    action(StoredObject(prefix + entry.name, attributes.size(), attributes.lastModifiedTime().toMillis()))
+                }
+            }
+            directories.forEach { it.join() }
+        }
+    }
+
+    private companion object {
+        const val BATCH_SIZE = 512
+    }
+}
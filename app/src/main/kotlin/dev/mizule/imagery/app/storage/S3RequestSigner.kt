@@ -0,0 +1,115 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import java.net.URI
+import java.net.URLEncoder
+import java.security.MessageDigest
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.util.HexFormat
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Signs S3 requests with AWS Signature Version 4, sending payloads unsigned so bodies can be streamed.
+ */
+class S3RequestSigner(private val region: String, private val accessKey: String, private val secretKey: String) {
+
+    /**
+     * Returns the headers to add to a request for [uri], which must already be in its final encoded form.
+     */
+    fun sign(method: String, uri: URI, extraHeaders: Map<String, String> = emptyMap()): Map<String, String> {
+        val now = ZonedDateTime.now(ZoneOffset.UTC)
+        val amzDate = now.format(AMZ_DATE)
+        val date = now.format(DATE)
+
+        val headers = sortedMapOf(
+            "host" to host(uri),
+            "x-amz-content-sha256" to UNSIGNED_PAYLOAD,
+            "x-amz-date" to amzDate,
+        )
+        extraHeaders.forEach { (name, value) -> headers[name.lowercase()] = value.trim() }
+        val signedHeaders = headers.keys.joinToString(";")
+
+        val canonicalRequest = listOf(
+            method,
+            uri.rawPath.ifEmpty { "/" },
+            canonicalQuery(uri.rawQuery),
+            headers.entries.joinToString("") { "${it.key}:${it.value}\n" },
+            signedHeaders,
+            UNSIGNED_PAYLOAD,
+        ).joinToString("\n")
+
+        val scope = "$date/$region/s3/aws4_request"
+        val stringToSign = "AWS4-HMAC-SHA256\n$amzDate\n$scope\n${sha256Hex(canonicalRequest)}"
+        val signingKey = listOf(date, region, "s3", "aws4_request")
+            .fold("AWS4$secretKey".toByteArray()) { key, part -> hmac(key, part) }
+        val signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign))
+
+        val signed = headers.filterKeys { it != "host" }.toMutableMap()
+        signed["Authorization"] = "AWS4-HMAC-SHA256 Credential=$accessKey/$scope, SignedHeaders=$signedHeaders, Signature=$signature"
+        return signed
+    }
+
+    private fun host(uri: URI): String {
+        val defaultPort = if (uri.scheme == "https") 443 else 80
+        return if (uri.port == -1 || uri.port == defaultPort) uri.host else "${uri.host}:${uri.port}"
+    }
+
+    private fun canonicalQuery(rawQuery: String?): String {
+        if (rawQuery.isNullOrEmpty()) {
+            return ""
+        }
+        return rawQuery.split('&')
+            .map { it.substringBefore('=') to it.substringAfter('=', "") }
+            .sortedWith(compareBy({ it.first }, { it.second }))
+            .joinToString("&") { "${it.first}=${it.second}" }
+    }
+
+    private fun hmac(key: ByteArray, data: String): ByteArray {
+        val mac = Mac.getInstance("HmacSHA256")
+        mac.init(SecretKeySpec(key, "HmacSHA256"))
+        return mac.doFinal(data.toByteArray())
+    }
+
+    private fun sha256Hex(data: String): String =
+        HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data.toByteArray()))
+
+    companion object {
+        private const val UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD"
+        private val AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+        private val DATE = DateTimeFormatter.ofPattern("yyyyMMdd")
+
+        /**
+         * Encodes a path segment or query component the way SigV4 expects.
+         */
+        fun encode(value: String): String = URLEncoder.encode(value, Charsets.UTF_8)
+            .replace("+", "%20")
+            .replace("*", "%2A")
+            .replace("%7E", "~")
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import dev.mizule.imagery.app.config.S3Config
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.IOException
+import java.io.InputStream
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Semaphore
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Stores uploads in an S3-compatible bucket using path-style requests, so it also works against MinIO
+ * and similar stand-ins.
+ *
+ * Uploads of at least [S3Config.multipartThreshold] bytes, or of unknown size, use multipart uploads with up to
+ * [S3Config.uploadParallelism] parts in flight, which also bounds the memory used for buffering parts.
+ */
+class S3StorageBackend(private val config: S3Config) : StorageBackend {
+    private val client = HttpClient.newHttpClient()
+    private val signer = S3RequestSigner(config.region, config.accessKey, config.secretKey)
+    private val bucketUrl = "${config.endpoint.trimEnd('/')}/${S3RequestSigner.encode(config.bucket)}"
+
+    override fun put(key: String, input: InputStream, size: Long) {
+        if (size in 0 until config.multipartThreshold) {
+            val body = if (size == 0L) {
+                HttpRequest.BodyPublishers.noBody()
+            } else {
+                HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream { input }, size)
+            }
+            val response = send("PUT", key, body = body)
+            expectSuccess(response, "PUT $key")
+            return
+        }
+        multipartPut(key, input)
+    }
+
+    private fun multipartPut(key: String, input: InputStream) {
+        val initiate = send("POST", key, "uploads=", HttpRequest.BodyPublishers.noBody(), HttpResponse.BodyHandlers.ofString())
+        expectSuccess(initiate, "initiating multipart upload of $key")
+        val uploadId = checkNotNull(UPLOAD_ID.find(initiate.body())?.groupValues?.get(1)) { "No UploadId for $key" }
+
+        val inFlight = Semaphore(config.uploadParallelism.coerceAtLeast(1))
+        val parts = ArrayList<CompletableFuture<String>>()
+        try {
+            var partNumber = 1
+            while (true) {
+                inFlight.acquire()
+                // stop reading as soon as a part failed, the upload is aborted below
+                parts.firstOrNull { it.isCompletedExceptionally }?.let { failed ->
+                    inFlight.release()
+                    failed.join()
+                }
+                val buffer = input.readNBytes(config.partSize.toInt())
+                if (buffer.isEmpty() && partNumber > 1) {
+                    inFlight.release()
+                    break
+                }
+                val number = partNumber++
+                parts += sendAsync(
+                    "PUT",
+                    key,
+                    "partNumber=$number&uploadId=${S3RequestSigner.encode(uploadId)}",
+                    HttpRequest.BodyPublishers.ofByteArray(buffer),
+                ).thenApply { response ->
+                    expectSuccess(response, "uploading part $number of $key")
+                    response.headers().firstValue("ETag").orElseThrow { IOException("No ETag for part $number of $key") }
+                }.whenComplete { _, _ -> inFlight.release() }
+
+                if (buffer.size < config.partSize) {
+                    break
+                }
+            }
+
+            val completion = parts.mapIndexed { index, part ->
+                "<Part><PartNumber>${index + 1}</PartNumber><ETag>${part.join()}</ETag></Part>"
+            }.joinToString("", "<CompleteMultipartUpload>", "</CompleteMultipartUpload>")
+            val complete = send(
+                "POST",
+                key,
+                "uploadId=${S3RequestSigner.encode(uploadId)}",
+                HttpRequest.BodyPublishers.ofString(completion),
+                HttpResponse.BodyHandlers.ofString(),
+            )
+            expectSuccess(complete, "completing multipart upload of $key")
+            // S3 may report a failed completion with a 200 status
+            check("<Error>" !in complete.body()) { "Could not complete multipart upload of $key: ${complete.body()}" }
+        } catch (e: Exception) {
+            parts.forEach { it.cancel(true) }
+            try {
+                send("DELETE", key, "uploadId=${S3RequestSigner.encode(uploadId)}")
+            } catch (abort: Exception) {
+                logger.warn(abort) { "Could not abort multipart upload of $key" }
+            }
+            throw e
+        }
+    }
+
+    override fun get(key: String): InputStream? {
+        val response = send("GET", key, handler = HttpResponse.BodyHandlers.ofInputStream())
+        return bodyOrNull(response, "GET $key")
+    }
+
+    override fun getRange(key: String, offset: Long, length: Long): InputStream? {
+        val response = send(
+            "GET",
+            key,
+            headers = mapOf("Range" to "bytes=$offset-${offset + length - 1}"),
+            handler = HttpResponse.BodyHandlers.ofInputStream(),
+        )
+        return bodyOrNull(response, "GET $key")
+    }
+
+    override fun size(key: String): Long? {
+        val response = send("HEAD", key)
+        if (response.statusCode() == 404) {
+            return null
+        }
+        expectSuccess(response, "HEAD $key")
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1)
+    }
+
+    override fun delete(key: String): Boolean {
+        val existed = exists(key)
+        expectSuccess(send("DELETE", key), "DELETE $key")
+        return existed
+    }
+
+    /**
+     * Lists the bucket a page at a time with ListObjectsV2, calling [action] on the calling thread.
+     */
+    override fun list(action: (StoredObject) -> Unit) {
+        var continuation: String? = null
+        do {
+            val query = "list-type=2" + (continuation?.let { "&continuation-token=${S3RequestSigner.encode(it)}" } ?: "")
+            val response = send("GET", "", query, handler = HttpResponse.BodyHandlers.ofString())
+            expectSuccess(response, "listing ${config.bucket}")
+            val body = response.body()
+            for (contents in CONTENTS.findAll(body)) {
+                val element = contents.groupValues[1]
+                val key = unescape(checkNotNull(KEY.find(element)) { "No Key in listing of ${config.bucket}" }.groupValues[1])
+                val size = SIZE.find(element)?.groupValues?.get(1)?.toLong() ?: -1
+                val lastModified = LAST_MODIFIED.find(element)?.groupValues?.get(1)?.let { Instant.parse(it).toEpochMilli() } ?: 0
+                action(StoredObject(key, size, lastModified))
+            }
+            continuation = if (TRUNCATED.containsMatchIn(body)) {
+                checkNotNull(NEXT_CONTINUATION.find(body)) { "No continuation token in truncated listing of ${config.bucket}" }
+                    .groupValues[1].let(::unescape)
+            } else {
+                null
+            }
+        } while (continuation != null)
+    }
+
+    private fun unescape(xml: String): String = xml
+        .replace("&lt;", "<")
+        .replace("&gt;", ">")
+        .replace("&quot;", "\"")
+        .replace("&apos;", "'")
+        .replace("&amp;", "&")
+
+    private fun bodyOrNull(response: HttpResponse<InputStream>, action: String): InputStream? {
+        if (response.statusCode() == 404) {
+            response.body().close()
+            return null
+        }
+        if (response.statusCode() / 100 != 2) {
+            response.body().close()
+            throw IOException("$action failed with status ${response.statusCode()}")
+        }
+        return response.body()
+    }
+
+    private fun expectSuccess(response: HttpResponse<*>, action: String) {
+        if (response.statusCode() / 100 != 2) {
+            throw IOException("$action failed with status ${response.statusCode()}")
+        }
+    }
+
+    private fun request(
+        method: String,
+        key: String,
+        query: String?,
+        body: HttpRequest.BodyPublisher,
+        headers: Map<String, String>,
+    ): HttpRequest {
+        val path = if (key.isEmpty()) bucketUrl else "$bucketUrl/${S3RequestSigner.encode(key)}"
+        val uri = URI.create(path + (query?.let { "?$it" } ?: ""))
+        val builder = HttpRequest.newBuilder(uri).method(method, body)
+        headers.forEach(builder::header)
+        signer.sign(method, uri, headers).forEach(builder::header)
+        return builder.build()
+    }
+
+    private fun send(
+        method: String,
+        key: String,
+        query: String? = null,
+        body: HttpRequest.BodyPublisher = HttpRequest.BodyPublishers.noBody(),
+        headers: Map<String, String> = emptyMap(),
+    ): HttpResponse<Void> = send(method, key, query, body, HttpResponse.BodyHandlers.discarding(), headers)
+
+    private fun <T> send(
+        method: String,
+        key: String,
+        query: String? = null,
+        body: HttpRequest.BodyPublisher = HttpRequest.BodyPublishers.noBody(),
+        handler: HttpResponse.BodyHandler<T>,
+        headers: Map<String, String> = emptyMap(),
+    ): HttpResponse<T> = client.send(request(method, key, query, body, headers), handler)
+
+    private fun sendAsync(
+        method: String,
+        key: String,
+        query: String,
+        body: HttpRequest.BodyPublisher,
+    ): CompletableFuture<HttpResponse<Void>> =
+        client.sendAsync(request(method, key, query, body, emptyMap()), HttpResponse.BodyHandlers.discarding())
+
+    companion object {
+        private val UPLOAD_ID = Regex("<UploadId>(.+?)</UploadId>")
+        private val CONTENTS = Regex("<Contents>(.*?)</Contents>", RegexOption.DOT_MATCHES_ALL)
+        private val KEY = Regex("<Key>(.*?)</Key>")
+        private val SIZE = Regex("<Size>(\\d+)</Size>")
+        private val LAST_MODIFIED = Regex("<LastModified>(.+?)</LastModified>")
+        private val TRUNCATED = Regex("<IsTruncated>true</IsTruncated>")
+        private val NEXT_CONTINUATION = Regex("<NextContinuationToken>(.+?)</NextContinuationToken>")
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.createDirectories
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.fileSize
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Packs uploads of at most [threshold] bytes into large append-only segment files, Haystack style,
+ * and leaves bigger ones to [largeFiles].
+ *
+ * Every record is a header (magic, type, key length, data length, write time) followed by the key and the data.
+ * Deletes append a tombstone. The in-memory index maps keys to their data's segment, offset and length,
+ * and is rebuilt by replaying the segments on startup. [compact] rewrites sealed segments in which
+ * more than [compactionRatio] of the bytes are dead.
+ *
+ * A key lives in only one of the two places, [largeFiles] is asked whether it has a key before deleting it there.
+ * Segments are forced to disk when they are sealed and before compacted ones are retired, appends to the active
+ * segment in between only reach the page cache.
+ */
+class SegmentStorageBackend(
+    private val largeFiles: StorageBackend,
+    private val directory: Path,
+    private val threshold: Long,
+    private val segmentSize: Long,
+    private val compactionRatio: Double,
+) : StorageBackend {
+    private val segments = ConcurrentSkipListMap<Int, Segment>()
+    private val index = ConcurrentHashMap<String, Location>()
+    private val retired = ArrayList<Segment>()
+    private val writeLock = Any()
+
+    @Volatile
+    private var active: Segment
+
+    init {
+        directory.createDirectories()
+        for (file in directory.listDirectoryEntries("segment-*.dat").sortedBy { it.name }) {
+            val segment = Segment(file.name.removePrefix("segment-").removeSuffix(".dat").toInt(), file)
+            segments[segment.id] = segment
+            replay(segment)
+        }
+        active = segments.lastEntry()?.value ?: newSegment(1)
+        logger.info { "Loaded ${index.size} packed files from ${segments.size} segments" }
+    }
+
+    override fun put(key: String, input: InputStream, size: Long) {
+        if (size !in 0..threshold) {
+            largeFiles.put(key, input, size)
+            if (index.containsKey(key)) {
+                append(key, TOMBSTONE, EMPTY)
+            }
+            return
+        }
+        val data = input.readNBytes(threshold.toInt() + 1)
+        if (data.size > threshold) {
+            // the declared size was wrong, don't pack it
+            largeFiles.put(key, SequenceInputStream(data.inputStream(), input), -1)
+            return
+        }
+        append(key, PUT, data)
+        deleteLarge(key)
+    }
+
+    override fun putFile(key: String, file: Path) {
+        val size = file.fileSize()
+        if (size <= threshold) {
+            super.putFile(key, file)
+            return
+        }
+        // large files keep their chance to be moved into place rather than copied
+        largeFiles.putFile(key, file)
+        if (index.containsKey(key)) {
+            append(key, TOMBSTONE, EMPTY)
+        }
+    }
+
+    override fun get(key: String): InputStream? {
+        val location = index[key] ?: return largeFiles.get(key)
+        return location.segment.open(location.offset, location.length)
+    }
+
+    override fun getRange(key: String, offset: Long, length: Long): InputStream? {
+        val location = index[key] ?: return largeFiles.getRange(key, offset, length)
+        val start = minOf(offset, location.length.toLong())
+        return location.segment.open(location.offset + start, minOf(length, location.length - start).toInt())
+    }
+
+    override fun size(key: String): Long? = index[key]?.length?.toLong() ?: largeFiles.size(key)
+
+    override fun delete(key: String): Boolean {
+        val packed = index.containsKey(key) && append(key, TOMBSTONE, EMPTY)
+        return deleteLarge(key) || packed
+    }
+
+    override fun list(action: (StoredObject) -> Unit) {
+        index.forEach { (key, location) ->
+            action(StoredObject(key, location.length.toLong(), location.written))
+        }
+        largeFiles.list { if (!index.containsKey(it.key)) action(it) }
+    }
+
+    /**
+     * Rewrites the live records of sealed segments dominated by dead data into the active segment.
+     * Segments compacted by the previous run are deleted now, so reads started before are not cut off.
+     */
+    fun compact() {
+        synchronized(retired) {
+            retired.forEach { it.close(); it.path.deleteIfExists() }
+            retired.clear()
+        }
+        for (segment in segments.values.toList()) {
+            if (segment === active || segment.size.get() == 0L || segment.dead.get() < segment.size.get() * compactionRatio) {
+                continue
+            }
+            logger.info { "Compacting segment ${segment.id}, ${segment.dead.get()} of ${segment.size.get()} bytes dead" }
+            val hasOlder = segments.lowerKey(segment.id) != null
+            segment.scan { key, type, offset, length, written ->
+                if (type == PUT) {
+                    val location = index[key]
+                    if (location != null && location.segment === segment && location.offset == offset) {
+                        val data = segment.read(offset, length)
+                        synchronized(writeLock) {
+                            // only move it if it was not replaced or deleted meanwhile
+                            if (index[key] === location) {
+                                appendLocked(key, PUT, data, written)
+                            }
+                        }
+                    }
+                } else if (hasOlder && !index.containsKey(key)) {
+                    // an older segment may still hold the put this tombstone hides
+                    synchronized(writeLock) {
+                        if (!index.containsKey(key)) {
+                            appendLocked(key, TOMBSTONE, EMPTY)
+                        }
+                    }
+                }
+            }
+            // the moved records must be durable before the only other copy goes away
+            synchronized(writeLock) {
+                active.force()
+            }
+            segments.remove(segment.id)
+            synchronized(retired) {
+                retired += segment
+            }
+        }
+    }
+
+    override fun close() {
+        synchronized(writeLock) {
+            active.force()
+        }
+        segments.values.forEach(Segment::close)
+        synchronized(retired) {
+            retired.forEach(Segment::close)
+        }
+        largeFiles.close()
+    }
+
+    private fun deleteLarge(key: String): Boolean = largeFiles.exists(key) && largeFiles.delete(key)
+
+    private fun append(key: String, type: Byte, data: ByteArray): Boolean = synchronized(writeLock) {
+        appendLocked(key, type, data)
+    }
+
+    private fun appendLocked(key: String, type: Byte, data: ByteArray, written: Long = System.currentTimeMillis()): Boolean {
+        if (active.size.get() >= segmentSize) {
+            active.force()
+            active = newSegment(active.id + 1)
+        }
+        val keyBytes = key.encodeToByteArray()
+        val record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.size + data.size)
+            .putInt(MAGIC)
+            .put(type)
+            .putShort(keyBytes.size.toShort())
+            .putInt(data.size)
+            .putLong(written)
+            .put(keyBytes)
+            .put(data)
+            .flip()
+        val start = active.append(record)
+        val previous = if (type == PUT) {
+            index.put(key, Location(active, start + HEADER_SIZE + keyBytes.size, data.size, written))
+        } else {
+            index.remove(key)
+        }
+        previous?.let { it.segment.dead.addAndGet(it.length.toLong() + HEADER_SIZE + keyBytes.size) }
+        if (type == TOMBSTONE) {
+            active.dead.addAndGet(record.capacity().toLong())
+        }
+        return previous != null
+    }
+
+    private fun replay(segment: Segment) {
+        val end = segment.scan { key, type, offset, length, written ->
+            val previous = if (type == PUT) {
+                index.put(key, Location(segment, offset, length, written))
+            } else {
+                segment.dead.addAndGet(HEADER_SIZE + key.encodeToByteArray().size.toLong())
+                index.remove(key)
+            }
+            previous?.let { it.segment.dead.addAndGet(it.length.toLong() + HEADER_SIZE + key.encodeToByteArray().size) }
+        }
+        if (end < segment.channel.size()) {
+            logger.warn { "Truncating ${segment.path.name} from ${segment.channel.size()} to $end bytes after an incomplete write" }
+            segment.channel.truncate(end)
+        }
+        segment.size.set(end)
+    }
+
+    private fun newSegment(id: Int): Segment {
+        val segment = Segment(id, directory.resolve("segment-%06d.dat".format(id)))
+        segments[id] = segment
+        return segment
+    }
+
+    private class Location(val segment: Segment, val offset: Long, val length: Int, val written: Long)
+
+    private class Segment(val id: Int, val path: Path) {
+        val channel: FileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        val size = AtomicLong(channel.size())
+        val dead = AtomicLong()
+
+        /** Appends [record], returning the offset it starts at. Callers hold the write lock. */
+        fun append(record: ByteBuffer): Long {
+            val start = size.get()
+            var position = start
+            while (record.hasRemaining()) {
+                position += channel.write(record, position)
+            }
+            size.set(position)
+            return start
+        }
+
+        fun read(offset: Long, length: Int): ByteArray {
+            val buffer = ByteBuffer.allocate(length)
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1) {
+                    throw IOException("Unexpected end of ${path.name}")
+                }
+            }
+            return buffer.array()
+        }
+
+        fun open(offset: Long, length: Int): InputStream = PositionalInputStream(channel, offset, length.toLong())
+
+        /**
+         * Walks every complete record, returning the offset after the last one.
+         */
+        fun scan(action: (key: String, type: Byte, dataOffset: Long, length: Int, written: Long) -> Unit): Long {
+            val header = ByteBuffer.allocate(HEADER_SIZE)
+            val limit = channel.size()
+            var position = 0L
+            while (position + HEADER_SIZE <= limit) {
+                header.clear()
+                channel.read(header, position)
+                header.flip()
+                if (header.getInt() != MAGIC) {
+                    break
+                }
+                val type = header.get()
+                val keyLength = header.getShort().toInt()
+                val length = header.getInt()
+                val written = header.getLong()
+                val dataOffset = position + HEADER_SIZE + keyLength
+                if (dataOffset + length > limit) {
+                    break
+                }
+                action(read(position + HEADER_SIZE, keyLength).decodeToString(), type, dataOffset, length, written)
+                position = dataOffset + length
+            }
+            return position
+        }
+
+        fun force() = channel.force(false)
+
+        fun close() = channel.close()
+    }
+
+    /**
+     * Reads [length] bytes starting at [offset] with positional reads, so any number of them can share one channel.
+     */
+    private class PositionalInputStream(private val channel: FileChannel, private var position: Long, length: Long) : InputStream() {
+        private val end = position + length
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) == -1) -1 else single[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (position >= end) {
+                return -1
+            }
+            val read = channel.read(ByteBuffer.wrap(b, off, minOf(len.toLong(), end - position).toInt()), position)
+            if (read > 0) {
+                position += read
+            }
+            return read
+        }
+
+        override fun skip(n: Long): Long {
+            val skipped = minOf(n, end - position).coerceAtLeast(0)
+            position += skipped
+            return skipped
+        }
+
+        override fun available(): Int = minOf(end - position, Int.MAX_VALUE.toLong()).toInt()
+    }
+
+    companion object {
+        private const val MAGIC = 0x494d4753 // IMGS
+        private const val PUT: Byte = 0
+        private const val TOMBSTONE: Byte = 1
+        private const val HEADER_SIZE = 4 + 1 + 2 + 4 + 8
+        private val EMPTY = ByteArray(0)
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import java.io.Closeable
+import java.io.InputStream
+import java.nio.file.Path
+import kotlin.io.path.fileSize
+import kotlin.io.path.inputStream
+
+/**
+ * Where the bytes of uploads live, addressed by their file name.
+ */
+interface StorageBackend : Closeable {
+    /**
+     * Stores [input] under [key], replacing anything stored there. [size] is `-1` when unknown.
+     */
+    fun put(key: String, input: InputStream, size: Long)
+
+    /**
+     * Stores the contents of [file] under [key]. The file may be moved instead of copied.
+     */
+    fun putFile(key: String, file: Path) {
+        file.inputStream().use { put(key, it, file.fileSize()) }
+    }
+
+    /**
+     * Opens the bytes stored under [key], or returns `null` if nothing is.
+     */
+    fun get(key: String): InputStream?
+
+    /**
+     * Opens [length] bytes stored under [key] starting at [offset], or returns `null` if nothing is.
+     */
+    fun getRange(key: String, offset: Long, length: Long): InputStream?
+
+    /**
+     * Returns the number of bytes stored under [key], or `null` if nothing is.
+     */
+    fun size(key: String): Long?
+
+    /**
+     * Removes whatever is stored under [key], returning whether anything was.
+     */
+    fun delete(key: String): Boolean
+
+    fun exists(key: String): Boolean = size(key) != null
+
+    /**
+     * Calls [action] for everything stored, in no particular order and possibly from several threads.
+     * Throws [UnsupportedOperationException] if the backend cannot enumerate what it stores.
+     */
+    fun list(action: (StoredObject) -> Unit) {
+        throw UnsupportedOperationException("${javaClass.simpleName} cannot list its contents")
+    }
+
+    override fun close() {}
+}
+
+data class StoredObject(val key: String, val size: Long, val lastModified: Long)
@@ -0,0 +1,241 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.upload
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.benmanes.caffeine.cache.Scheduler
+import dev.mizule.imagery.app.exceptions.QuotaExceededResponse
+import dev.mizule.imagery.app.model.UploadSessionStatus
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.javalin.http.BadRequestResponse
+import io.javalin.http.ConflictResponse
+import io.javalin.http.HttpStatus
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.TreeMap
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import kotlin.io.path.createDirectories
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.listDirectoryEntries
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Resumable uploads: a session preallocates a file of the declared size, chunks are written into it at their
+ * offsets in any order and in parallel, and the session is finalized once every byte arrived.
+ *
+ * Sessions not touched for [expiryMinutes] expire and their files are deleted. A user may have at most
+ * [maxSessionsPerUser] sessions open at once, `-1` for no limit.
+ */
+class UploadSessionManager(
+    private val directory: Path,
+    private val maxSize: Long,
+    expiryMinutes: Long,
+    private val maxSessionsPerUser: Int,
+) {
+    private val sessions: Cache<String, UploadSession> = Caffeine.newBuilder()
+        .expireAfterAccess(expiryMinutes, TimeUnit.MINUTES)
+        .scheduler(Scheduler.systemScheduler())
+        .removalListener<String, UploadSession> { id, session, cause ->
+            session?.discard()
+            if (cause.wasEvicted()) {
+                logger.info { "Upload session $id expired" }
+            }
+        }
+        .build()
+
+    init {
+        directory.createDirectories()
+        // sessions do not survive restarts
+        directory.listDirectoryEntries("*.part").forEach { it.deleteIfExists() }
+    }
+
+    /**
+     * Opens a session for [user], after [admit] accepted the bytes and files the user's open sessions would
+     * reserve with this one, since every session takes its full size on disk from the start.
+     */
+    fun create(user: String, fileName: String, size: Long, admit: (reservedBytes: Long, sessions: Int) -> Unit): UploadSession {
+        if (size !in 0..maxSize) {
+            throw BadRequestResponse("Uploads must be between 0 and $maxSize bytes")
+        }
+        // serialized so concurrent creates by one user can't all pass the checks
+        synchronized(this) {
+            val open = sessions.asMap().values.filter { it.user == user }
+            if (maxSessionsPerUser >= 0 && open.size >= maxSessionsPerUser) {
+                throw QuotaExceededResponse(
+                    "At most $maxSessionsPerUser upload sessions may be open at once",
+                    HttpStatus.TOO_MANY_REQUESTS,
+                )
+            }
+            admit(open.sumOf { it.size } + size, open.size + 1)
+            val id = UUID.randomUUID().toString()
+            val session = UploadSession(id, user, fileName, size, directory.resolve("$id.part"))
+            sessions.put(id, session)
+            return session
+        }
+    }
+
+    /**
+     * Returns the session with [id] if it belongs to [user].
+     */
+    operator fun get(id: String, user: String): UploadSession? = sessions.getIfPresent(id)?.takeIf { it.user == user }
+
+    fun remove(session: UploadSession) {
+        sessions.invalidate(session.id)
+    }
+
+    class UploadSession(val id: String, val user: String, val fileName: String, val size: Long, val path: Path) {
+        private val channel: FileChannel
+        private val received = TreeMap<Long, Long>()
+        private var receivedBytes = 0L
+        private var state = State.OPEN
+
+        // chunks being written right now, the channel stays open until the last one finished
+        private var writers = 0
+
+        init {
+            RandomAccessFile(path.toFile(), "rw").use { it.setLength(size) }
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        }
+
+        /**
+         * Writes [input] at [offset] with positional writes, returning the number of bytes written.
+         */
+        fun write(offset: Long, input: InputStream): Long {
+            if (offset !in 0..size) {
+                throw BadRequestResponse("Offset $offset is outside of the upload")
+            }
+            synchronized(this) {
+                if (state != State.OPEN) {
+                    throw ConflictResponse("The upload session is no longer open")
+                }
+                writers++
+            }
+            try {
+                val buffer = ByteArray(CHUNK_BUFFER_SIZE)
+                var position = offset
+                while (true) {
+                    val read = input.read(buffer)
+                    if (read == -1) {
+                        break
+                    }
+                    if (position + read > size) {
+                        throw BadRequestResponse("The chunk extends past the declared size of $size bytes")
+                    }
+                    val byteBuffer = ByteBuffer.wrap(buffer, 0, read)
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position)
+                    }
+                }
+                markReceived(offset, position)
+                return position - offset
+            } finally {
+                synchronized(this) {
+                    writers--
+                    if (writers == 0 && state == State.DISCARDED) {
+                        close()
+                    }
+                }
+            }
+        }
+
+        /**
+         * Seals the session if every byte arrived, after which no more chunks are accepted.
+         */
+        fun seal() = synchronized(this) {
+            if (state != State.OPEN) {
+                throw ConflictResponse("The upload session is no longer open")
+            }
+            if (receivedBytes != size) {
+                throw ConflictResponse("Only $receivedBytes of $size bytes were received")
+            }
+            if (writers > 0) {
+                throw ConflictResponse("Chunks of the upload are still being written")
+            }
+            state = State.SEALED
+            channel.force(false)
+            channel.close()
+        }
+
+        fun status(): UploadSessionStatus = synchronized(this) {
+            UploadSessionStatus(id, size, receivedBytes, received.map { listOf(it.key, it.value) })
+        }
+
+        /**
+         * Closes and deletes the file, or leaves that to the last chunk still being written.
+         */
+        fun discard() = synchronized(this) {
+            state = State.DISCARDED
+            if (writers == 0) {
+                close()
+            }
+        }
+
+        private fun close() {
+            channel.close()
+            path.deleteIfExists()
+        }
+
+        private fun markReceived(start: Long, end: Long) = synchronized(this) {
+            if (start == end) {
+                return
+            }
+            var mergedStart = start
+            var mergedEnd = end
+            val floor = received.floorEntry(start)
+            if (floor != null && floor.value >= start) {
+                mergedStart = floor.key
+                mergedEnd = maxOf(mergedEnd, floor.value)
+            }
+            while (true) {
+                val next = received.ceilingEntry(mergedStart) ?: break
+                if (next.key > mergedEnd) {
+                    break
+                }
+                mergedEnd = maxOf(mergedEnd, next.value)
+                receivedBytes -= next.value - next.key
+                received.remove(next.key)
+            }
+            received[mergedStart] = mergedEnd
+            receivedBytes += mergedEnd - mergedStart
+        }
+
+        private enum class State {
+            OPEN,
+            SEALED,
+            DISCARDED,
+        }
+    }
+
+    companion object {
+        private const val CHUNK_BUFFER_SIZE = 64 * 1024
+    }
+}
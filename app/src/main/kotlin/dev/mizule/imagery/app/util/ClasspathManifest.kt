@@ -0,0 +1,87 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.util
+
+import java.nio.file.Path
+import kotlin.io.path.exists
+import kotlin.io.path.fileSize
+import kotlin.io.path.readLines
+import kotlin.io.path.writeLines
+
+/**
+ * A snapshot of a successful dependency resolution, used to skip resolving on later boots.
+ *
+ * The first line holds the hash of the dependency set the manifest was created for,
+ * every following line is `<sha256> <size> <path relative to the cache directory>`.
+ */
+class ClasspathManifest(val dependencyHash: String, val entries: List<Entry>) {
+
+    data class Entry(val sha256: String, val size: Long, val path: String)
+
+    /**
+     * Verifies every jar in parallel and returns their absolute paths.
+     *
+     * @throws IllegalStateException if a jar is missing or does not match its checksum
+     */
+    fun verify(cacheDir: Path): Set<Path> {
+        val mismatches = entries.parallelStream()
+            .filter { entry ->
+                val path = cacheDir.resolve(entry.path)
+                !path.exists() || path.fileSize() != entry.size || Hashing.sha256Hex(path) != entry.sha256
+            }
+            .map { it.path }
+            .toList()
+        check(mismatches.isEmpty()) { "Cached libraries do not match the classpath manifest: $mismatches" }
+        return entries.mapTo(LinkedHashSet()) { cacheDir.resolve(it.path) }
+    }
+
+    fun write(file: Path) {
+        file.writeLines(listOf("$HEADER_PREFIX$dependencyHash") + entries.map { "${it.sha256} ${it.size} ${it.path}" })
+    }
+
+    companion object {
+        private const val HEADER_PREFIX = "# dependencies "
+
+        fun read(file: Path): ClasspathManifest? {
+            if (!file.exists()) {
+                return null
+            }
+            val lines = file.readLines().filter { it.isNotBlank() }
+            val header = lines.firstOrNull()?.takeIf { it.startsWith(HEADER_PREFIX) } ?: return null
+            val entries = lines.drop(1).map { line ->
+                val (sha256, size, path) = line.split(' ', limit = 3)
+                Entry(sha256, size.toLong(), path)
+            }
+            return ClasspathManifest(header.removePrefix(HEADER_PREFIX), entries)
+        }
+
+        fun create(dependencyHash: String, cacheDir: Path, jars: Collection<Path>): ClasspathManifest {
+            val entries = jars.parallelStream()
+                .map { Entry(Hashing.sha256Hex(it), it.fileSize(), cacheDir.toAbsolutePath().relativize(it.toAbsolutePath()).toString().replace('\\', '/')) }
+                .toList()
+            return ClasspathManifest(dependencyHash, entries)
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.util
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import java.io.Closeable
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchKey
+import java.util.concurrent.ConcurrentHashMap
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Calls back when watched files are created or modified, on a single daemon thread.
+ *
+ * The parent directory is watched rather than the file, so files replaced by an atomic move are picked up too.
+ * Events are collected for a short while before calling back, since editors tend to write a file in several steps.
+ */
+class FileWatcher(name: String) : Closeable {
+    private val service = FileSystems.getDefault().newWatchService()
+    private val callbacks = ConcurrentHashMap<Path, () -> Unit>()
+    private val thread = Thread(::run, name).apply { isDaemon = true }
+
+    init {
+        thread.start()
+    }
+
+    fun watch(file: Path, onChange: () -> Unit) {
+        val absolute = file.toAbsolutePath().normalize()
+        callbacks[absolute] = onChange
+        absolute.parent.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY)
+    }
+
+    private fun run() {
+        try {
+            while (true) {
+                val keys = mutableListOf(service.take())
+                Thread.sleep(DEBOUNCE_MILLIS)
+                generateSequence { service.poll() }.forEach(keys::add)
+
+                val changed = LinkedHashSet<Path>()
+                for (key in keys) {
+                    changed += changedFiles(key)
+                    key.reset()
+                }
+                for (file in changed) {
+                    val callback = callbacks[file] ?: continue
+                    try {
+                        callback()
+                    } catch (e: Exception) {
+                        logger.error(e) { "Could not reload $file" }
+                    }
+                }
+            }
+        } catch (e: ClosedWatchServiceException) {
+            // closed
+        } catch (e: InterruptedException) {
+            // closed
+        }
+    }
+
+    private fun changedFiles(key: WatchKey): List<Path> {
+        val directory = key.watchable() as Path
+        return key.pollEvents().flatMap { event ->
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                callbacks.keys.filter { it.parent == directory }
+            } else {
+                listOf(directory.resolve(event.context() as Path))
+            }
+        }
+    }
+
+    override fun close() {
+        service.close()
+    }
+
+    private companion object {
+        const val DEBOUNCE_MILLIS = 250L
+    }
+}
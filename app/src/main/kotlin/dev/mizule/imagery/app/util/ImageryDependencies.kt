@@ -32,19 +32,57 @@
 
 class ImageryDependencies {
     companion object {
-        fun resolve(cacheDir: Path): Set<Path> {
+        private const val DEPENDENCIES_RESOURCE = "imagery-dependencies.txt"
+        private const val MANIFEST_FILE = "classpath.manifest"
+
+        private val logger = LoggerFactory.getLogger(ImageryDependencies::class.java.simpleName)
+
+        /**
+         * Resolves the runtime libraries into [cacheDir].
+         *
+         * When a classpath manifest for the current dependency set exists, the cached jars are only
+         * verified against it and no resolution happens. In [offline] mode a missing or mismatching
+         * manifest is fatal instead of falling back to a full resolve.
+         */
+        fun resolve(cacheDir: Path, offline: Boolean = false): Set<Path> {
+            val dependencyHash = dependencyHash()
+            val manifestPath = manifestPath(cacheDir)
+            val manifest = ClasspathManifest.read(manifestPath)?.takeIf { it.dependencyHash == dependencyHash }
+
+            if (manifest != null) {
+                try {
+                    return manifest.verify(cacheDir)
+                } catch (e: IllegalStateException) {
+                    if (offline) {
+                        throw e
+                    }
+                    logger.warn("{}, resolving dependencies again", e.message)
+                }
+            } else {
+                check(!offline) { "No classpath manifest for the current dependencies at $manifestPath, cannot start offline" }
+            }
+
             val deps = DependencySet.readFromClasspathResource(
                 ImageryDependencies::class.java.classLoader,
-                "imagery-dependencies.txt",
+                DEPENDENCIES_RESOURCE,
             )
             val cache = DependencyCache(cacheDir)
-            val logger = LoggerFactory.getLogger(ImageryDependencies::class.java.simpleName)
             val files: Set<Path>
             DependencyResolver(logger).use { downloader ->
                 files = downloader.resolve(deps, cache).jarFiles()
             }
             cache.cleanup()
+            ClasspathManifest.create(dependencyHash, cacheDir, files).write(manifestPath)
             return files
         }
+
+        fun manifestPath(cacheDir: Path): Path = cacheDir.resolve(MANIFEST_FILE)
+
+        fun dependencyHash(): String {
+            val resource = requireNotNull(ImageryDependencies::class.java.classLoader.getResourceAsStream(DEPENDENCIES_RESOURCE)) {
+                "Could not find $DEPENDENCIES_RESOURCE"
+            }
+            return Hashing.sha256Hex(resource.use { it.readBytes() })
+        }
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.util
+
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.DigestOutputStream
+import java.util.jar.Attributes
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.io.path.outputStream
+import kotlin.io.path.readText
+import kotlin.io.path.writeText
+
+/**
+ * Merges the resolved libraries into a single jar, so the system class loader only has one more
+ * jar to search and keep open instead of one per library.
+ *
+ * The first library containing an entry wins, like it would on the classpath. Service files are
+ * concatenated, and signatures and module descriptors are dropped. Manifests are not copied as a whole,
+ * but the package attributes each library declares are kept as sections for the packages it contributed,
+ * so package versions and sealing still read the same. The merged jar is only multi-release when one of the
+ * libraries is, and then only keeps the versioned classes of multi-release libraries.
+ *
+ * The merged jar's checksum is stored next to it and checked before it is reused.
+ */
+object LibraryMerger {
+    private const val SERVICES_PREFIX = "META-INF/services/"
+    private const val VERSIONS_PREFIX = "META-INF/versions/"
+    private val logger = LoggerFactory.getLogger(LibraryMerger::class.java.simpleName)
+
+    /** The manifest attributes that describe the packages of a jar, see [Package]. */
+    private val PACKAGE_ATTRIBUTES = listOf(
+        Attributes.Name.SPECIFICATION_TITLE,
+        Attributes.Name.SPECIFICATION_VERSION,
+        Attributes.Name.SPECIFICATION_VENDOR,
+        Attributes.Name.IMPLEMENTATION_TITLE,
+        Attributes.Name.IMPLEMENTATION_VERSION,
+        Attributes.Name.IMPLEMENTATION_VENDOR,
+        Attributes.Name.SEALED,
+    )
+
+    /**
+     * Returns the merged jar for [dependencyHash], building it from [libraries] if it does not exist yet
+     * or no longer matches its stored checksum.
+     */
+    fun merge(cacheDir: Path, dependencyHash: String, libraries: Collection<Path>): Path {
+        val merged = cacheDir.resolve("merged-${dependencyHash.take(16)}.jar")
+        val checksum = merged.resolveSibling("${merged.name}.sha256")
+        if (merged.exists()) {
+            if (checksum.exists() && checksum.readText().trim() == Hashing.sha256Hex(merged)) {
+                return merged
+            }
+            logger.warn("{} does not match its checksum, merging again", merged.name)
+        }
+
+        cacheDir.listDirectoryEntries("merged-*").forEach { it.deleteIfExists() }
+        logger.info("Merging {} libraries into {}", libraries.size, merged.name)
+
+        val temp = Files.createTempFile(cacheDir, "merged-", ".tmp")
+        try {
+            val digest = Hashing.sha256()
+            DigestOutputStream(temp.outputStream().buffered(), digest).use { write(it, libraries) }
+            checksum.writeText(Hashing.hex(digest))
+            Files.move(temp, merged, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            temp.deleteIfExists()
+        }
+        return merged
+    }
+
+    private fun write(target: OutputStream, libraries: Collection<Path>) {
+        val jars = libraries.map { JarFile(it.toFile()) }
+        try {
+            val multiRelease = jars.any { it.manifest?.mainAttributes?.getValue(Attributes.Name.MULTI_RELEASE).toBoolean() }
+            val manifest = Manifest().apply {
+                mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
+                if (multiRelease) {
+                    mainAttributes[Attributes.Name.MULTI_RELEASE] = "true"
+                }
+            }
+            // which library each entry came from, and the packages each library contributed classes to
+            val owners = HashMap<String, JarFile>()
+            val packages = LinkedHashMap<String, JarFile>()
+            val services = LinkedHashMap<String, ByteArrayOutputStream>()
+            val entries = ArrayList<Pair<JarFile, JarEntry>>()
+            for (jar in jars) {
+                val versioned = jar.manifest?.mainAttributes?.getValue(Attributes.Name.MULTI_RELEASE).toBoolean()
+                // base entries first, so versioned classes can tell whether their base class came from this jar
+                val (versions, base) = jar.entries().toList().partition { it.name.startsWith(VERSIONS_PREFIX) }
+                for (entry in base + versions) {
+                    val name = entry.name
+                    when {
+                        isExcluded(name) -> continue
+                        name.startsWith(SERVICES_PREFIX) && !entry.isDirectory -> jar.getInputStream(entry).use {
+                            val service = services.getOrPut(name, ::ByteArrayOutputStream)
+                            it.copyTo(service)
+                            service.write('\n'.code)
+                        }
+                        name.startsWith(VERSIONS_PREFIX) && !keepVersioned(jar, versioned, entry, owners) -> continue
+                        owners.putIfAbsent(name, jar) == null -> {
+                            entries += jar to entry
+                            if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+                                packages.putIfAbsent(name.substringBeforeLast('/', "") + "/", jar)
+                            }
+                        }
+                    }
+                }
+            }
+            for ((packagePath, jar) in packages) {
+                packageAttributes(jar, packagePath)?.let { manifest.entries[packagePath] = it }
+            }
+
+            JarOutputStream(target, manifest).use { output ->
+                for ((jar, entry) in entries) {
+                    output.putNextEntry(JarEntry(entry.name).apply { time = entry.time })
+                    if (!entry.isDirectory) {
+                        jar.getInputStream(entry).use { it.copyTo(output) }
+                    }
+                    output.closeEntry()
+                }
+                for ((name, content) in services) {
+                    output.putNextEntry(JarEntry(name))
+                    content.writeTo(output)
+                    output.closeEntry()
+                }
+            }
+        } finally {
+            jars.forEach(JarFile::close)
+        }
+    }
+
+    /**
+     * Versioned classes only apply in multi-release libraries, and only over base classes from the same library.
+     */
+    private fun keepVersioned(jar: JarFile, multiRelease: Boolean, entry: JarEntry, owners: Map<String, JarFile>): Boolean {
+        if (!multiRelease || entry.isDirectory) {
+            return multiRelease
+        }
+        val base = entry.name.removePrefix(VERSIONS_PREFIX).substringAfter('/')
+        return owners[base].let { it == null || it === jar }
+    }
+
+    /**
+     * The package attributes [jar] declares for [packagePath], from its main attributes overridden by the
+     * package's own section, or `null` if it declares none.
+     */
+    private fun packageAttributes(jar: JarFile, packagePath: String): Attributes? {
+        val manifest = jar.manifest ?: return null
+        val attributes = Attributes()
+        for (name in PACKAGE_ATTRIBUTES) {
+            manifest.mainAttributes.getValue(name)?.let { attributes[name] = it }
+        }
+        manifest.getAttributes(packagePath)?.let(attributes::putAll)
+        return attributes.takeIf { it.isNotEmpty() }
+    }
+
+    private fun isExcluded(name: String): Boolean {
+        if (name.endsWith("module-info.class")) {
+            return true
+        }
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length) != -1) {
+            return false
+        }
+        return name.equals(JarFile.MANIFEST_NAME, ignoreCase = true) ||
+            name.equals("META-INF/INDEX.LIST", ignoreCase = true) ||
+            SIGNATURE_SUFFIXES.any { name.endsWith(it, ignoreCase = true) }
+    }
+
+    private val SIGNATURE_SUFFIXES = listOf(".SF", ".DSA", ".RSA", ".EC")
+}
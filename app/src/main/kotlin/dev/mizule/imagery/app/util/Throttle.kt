@@ -0,0 +1,66 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.util
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Paces background I/O to [bytesPerSecond] by sleeping whenever it gets ahead. Not thread-safe.
+ */
+class Throttle(
+    bytesPerSecond: Long,
+    private val nanoTime: () -> Long = System::nanoTime,
+    private val sleep: (Long) -> Unit = TimeUnit.NANOSECONDS::sleep,
+) {
+    private val bytesPerSecond = bytesPerSecond.coerceAtLeast(1)
+    private var start = nanoTime()
+    private var bytes = 0L
+
+    /**
+     * Starts counting afresh, so time spent idle isn't used up in a burst.
+     */
+    fun reset() {
+        start = nanoTime()
+        bytes = 0
+    }
+
+    /**
+     * Sleeps for as long as having transferred [count] more bytes is ahead of the budget.
+     */
+    fun acquire(count: Int) {
+        bytes += count
+        // whole seconds and the rest apart, since bytes * 10^9 overflows after about 9.2 GB
+        val due = start + bytes / bytesPerSecond * NANOS_PER_SECOND +
+            (bytes % bytesPerSecond * NANOS_PER_SECOND.toDouble() / bytesPerSecond).toLong()
+        val ahead = due - nanoTime()
+        if (ahead > 0) {
+            sleep(ahead)
+        }
+    }
+
+    private companion object {
+        const val NANOS_PER_SECOND = 1_000_000_000L
+    }
+}
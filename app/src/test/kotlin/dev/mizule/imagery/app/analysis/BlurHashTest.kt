@@ -0,0 +1,84 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.analysis
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+/**
+ * The expected hashes were computed with the reference C encoder's algorithm on the same synthetic images.
+ */
+class BlurHashTest {
+    @Test
+    fun `a flat image has no detail`() {
+        val result = BlurHash.encode(IntArray(64) { 0x808080 }, 8, 8)
+        assertEquals("L8Eyb[~qfQ~q~qt7fQt7fQfQfQfQ", result.hash)
+        assertEquals(0x808080, result.averageColor)
+    }
+
+    @Test
+    fun `a single component is only the average color`() {
+        val result = BlurHash.encode(IntArray(4) { 0x336699 }, 2, 2, componentsX = 1, componentsY = 1)
+        assertEquals("005?}k", result.hash)
+        assertEquals(0x336699, result.averageColor)
+    }
+
+    @Test
+    fun `a horizontal gradient`() {
+        val pixels = image(32, 32) { x, _ -> (x * 255 / 31) * 0x010101 }
+        assertEquals("L\$HetW00xuWBofWBj[fQfQfQfQfQ", BlurHash.encode(pixels, 32, 32).hash)
+    }
+
+    @Test
+    fun `two colored halves`() {
+        val pixels = image(16, 16) { x, _ -> if (x < 8) 0xff0000 else 0x0000ff }
+        assertEquals("K~LjfL|T\$0sXsSjsfQfQfQ", BlurHash.encode(pixels, 16, 16, componentsX = 3, componentsY = 3).hash)
+    }
+
+    @Test
+    fun `four colored quadrants with more components`() {
+        val pixels = image(20, 12) { x, y ->
+            when {
+                x < 10 && y < 6 -> 0xffcc00
+                x < 10 -> 0x3366ff
+                y < 6 -> 0x20a040
+                else -> 0xf0f0f0
+            }
+        }
+        assertEquals(
+            "V}LETiv.jIo|fQxO^bs,NIfQjVxVoKWCfQtUNLWXs.fQ",
+            BlurHash.encode(pixels, 20, 12, componentsX = 5, componentsY = 4).hash,
+        )
+    }
+
+    @Test
+    fun `component counts are limited to what the format can store`() {
+        assertFailsWith<IllegalArgumentException> { BlurHash.encode(IntArray(1), 1, 1, componentsX = 10) }
+        assertFailsWith<IllegalArgumentException> { BlurHash.encode(IntArray(1), 1, 1, componentsY = 0) }
+    }
+
+    private fun image(width: Int, height: Int, color: (x: Int, y: Int) -> Int) = IntArray(width * height) { color(it % width, it / width) }
+}
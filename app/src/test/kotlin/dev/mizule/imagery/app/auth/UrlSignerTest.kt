@@ -0,0 +1,72 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.auth
+
+import kotlin.test.Test
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class UrlSignerTest {
+    private val signer = UrlSigner("secret".toByteArray())
+
+    @Test
+    fun `a signature is valid until it expires`() {
+        val signature = signer.sign("abc", 1_000)
+        assertTrue(signer.verify("abc", "1000", signature, now = 999))
+        assertTrue(signer.verify("abc", "1000", signature, now = 1_000))
+        assertFalse(signer.verify("abc", "1000", signature, now = 1_001))
+    }
+
+    @Test
+    fun `a signature only covers its upload and expiry`() {
+        val signature = signer.sign("abc", 1_000)
+        assertFalse(signer.verify("abd", "1000", signature, now = 0))
+        assertFalse(signer.verify("abc", "2000", signature, now = 0))
+    }
+
+    @Test
+    fun `a signature from another secret is rejected`() {
+        val signature = UrlSigner("other".toByteArray()).sign("abc", 1_000)
+        assertFalse(signer.verify("abc", "1000", signature, now = 0))
+    }
+
+    @Test
+    fun `malformed parameters are rejected`() {
+        val signature = signer.sign("abc", 1_000)
+        assertFalse(signer.verify("abc", null, signature, now = 0))
+        assertFalse(signer.verify("abc", "soon", signature, now = 0))
+        assertFalse(signer.verify("abc", "1000", null, now = 0))
+        assertFalse(signer.verify("abc", "1000", "not base64!", now = 0))
+        assertFalse(signer.verify("abc", "1000", signature.dropLast(2), now = 0))
+    }
+
+    @Test
+    fun `signatures are url safe`() {
+        repeat(100) {
+            val signature = signer.sign("id$it", 1_000L + it)
+            assertTrue(signature.all { c -> c.isLetterOrDigit() || c == '-' || c == '_' }, signature)
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.backup
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import dev.mizule.imagery.app.config.BackupConfig
+import dev.mizule.imagery.app.index.FileIndex
+import dev.mizule.imagery.app.model.UploadedFile
+import dev.mizule.imagery.app.storage.LocalStorageBackend
+import dev.mizule.imagery.app.util.Hashing
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import java.util.concurrent.Executor
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class SnapshotManagerTest {
+    @TempDir
+    lateinit var workDir: Path
+
+    private val storage by lazy { LocalStorageBackend(workDir.resolve("storage")) }
+    private val index by lazy { FileIndex(workDir.resolve("files.json"), DIRECT) }
+    private val snapshots by lazy {
+        SnapshotManager(BackupConfig(path = workDir.resolve("backups").toString()), index, storage, jacksonObjectMapper())
+    }
+
+    @Test
+    fun `files are stored as they are and restored`() {
+        upload("a", bytes(1000))
+        upload("b", bytes(10))
+
+        assertEquals(1, snapshots.start(DIRECT))
+        val status = assertNotNull(snapshots.status())
+        assertNull(status.error)
+        assertEquals(2, status.files)
+        ZipFile(workDir.resolve("backups/snapshot-1.zip").toFile()).use { zip ->
+            assertEquals(ZipEntry.STORED, zip.getEntry("files/a.png").method)
+            assertEquals(1000, zip.getEntry("files/a.png").size)
+        }
+        // only the archive and the manifest, no temporary files left behind
+        assertEquals(
+            setOf("snapshot-1.zip", "snapshot-1.json"),
+            workDir.resolve("backups").listDirectoryEntries().map { it.name }.toSet(),
+        )
+
+        storage.delete("a.png")
+        assertEquals(1, snapshots.restore())
+        assertContentEquals(bytes(1000), storage.get("a.png")?.readBytes())
+    }
+
+    @Test
+    fun `files that don't match the manifest are not restored`() {
+        upload("a", bytes(100), sha256 = Hashing.sha256Hex(bytes(99)))
+        upload("b", bytes(100))
+        snapshots.start(DIRECT)
+
+        storage.delete("a.png")
+        storage.delete("b.png")
+        index.remove("a")
+        assertEquals(1, snapshots.restore())
+        assertFalse(storage.exists("a.png"))
+        assertNull(index["a"])
+        assertContentEquals(bytes(100), storage.get("b.png")?.readBytes())
+    }
+
+    private fun upload(id: String, data: ByteArray, sha256: String = Hashing.sha256Hex(data)) {
+        storage.put("$id.png", data.inputStream(), data.size.toLong())
+        index.put(UploadedFile(id, "user", 0, "$id.png", "$id.png", ".png", "image/png", data.size.toLong(), sha256))
+    }
+
+    private fun bytes(size: Int) = ByteArray(size) { (it * 31).toByte() }
+
+    private companion object {
+        val DIRECT = Executor(Runnable::run)
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.cluster
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import dev.mizule.imagery.app.App
+import dev.mizule.imagery.app.config.ChunkedUploadConfig
+import dev.mizule.imagery.app.config.ClusterConfig
+import dev.mizule.imagery.app.config.Config
+import dev.mizule.imagery.app.config.MetadataCacheConfig
+import dev.mizule.imagery.app.config.QuotaConfig
+import dev.mizule.imagery.app.config.ViewStatsConfig
+import org.junit.jupiter.api.io.TempDir
+import java.net.ServerSocket
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.nio.file.Path
+import kotlin.io.path.createDirectories
+import kotlin.io.path.writeText
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * Runs two nodes on localhost and adds the second one to a cluster the first one was running alone.
+ */
+class ClusterTest {
+    private val mapper = jacksonObjectMapper()
+    private val client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build()
+    private val noRedirects = HttpClient.newHttpClient()
+
+    @TempDir
+    lateinit var workDir: Path
+
+    @Test
+    fun `files stay reachable while a new node joins and end up on their owner`() {
+        val ports = List(2) { ServerSocket(0).use { it.localPort } }
+        val nodes = mapOf("node-1" to "http://127.0.0.1:${ports[0]}", "node-2" to "http://127.0.0.1:${ports[1]}")
+
+        val alone = App(config(1, ports[0], mapOf("node-1" to nodes.getValue("node-1"))), users(1))
+        alone.start()
+        val uploads = try {
+            (0 until UPLOADS).associate { upload(nodes.getValue("node-1"), "file $it".toByteArray()) }
+        } finally {
+            alone.stop()
+        }
+
+        val first = App(config(1, ports[0], nodes), users(1))
+        val second = App(config(2, ports[1], nodes), users(2))
+        second.start()
+        first.start()
+        try {
+            // the first node moves files in the background, every one of them must be served meanwhile
+            for ((url, content) in uploads) {
+                val viaSecond = url.replace(nodes.getValue("node-1"), nodes.getValue("node-2"))
+                val response = client.send(HttpRequest.newBuilder(URI.create(viaSecond)).build(), HttpResponse.BodyHandlers.ofByteArray())
+                assertEquals(200, response.statusCode(), "$viaSecond while rebalancing")
+                assertContentEquals(content, response.body())
+            }
+
+            val ring = HashRing(nodes.keys, ClusterConfig().virtualNodes)
+            val moved = uploads.keys.filter { ring.ownerOf(idOf(it)) == "node-2" }
+            assertTrue(moved.isNotEmpty(), "no file changed owner")
+            val deadline = System.currentTimeMillis() + 10_000
+            for (url in moved) {
+                val direct = URI.create(url.replace(nodes.getValue("node-1"), nodes.getValue("node-2")))
+                while (noRedirects.send(HttpRequest.newBuilder(direct).build(), HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                    assertTrue(System.currentTimeMillis() < deadline, "$url was never moved to its owner")
+                    Thread.sleep(50)
+                }
+            }
+        } finally {
+            first.stop()
+            second.stop()
+        }
+    }
+
+    private fun upload(baseUrl: String, content: ByteArray): Pair<String, ByteArray> {
+        val body = "--$BOUNDARY\r\n".toByteArray() +
+            "Content-Disposition: form-data; name=\"file\"; filename=\"test.bin\"\r\n\r\n".toByteArray() +
+            content +
+            "\r\n--$BOUNDARY--\r\n".toByteArray()
+        val response = client.send(
+            HttpRequest.newBuilder(URI.create("$baseUrl/upload"))
+                .header("Authorization", TOKEN)
+                .header("Content-Type", "multipart/form-data; boundary=$BOUNDARY")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build(),
+            HttpResponse.BodyHandlers.ofString(),
+        )
+        assertEquals(200, response.statusCode(), response.body())
+        return mapper.readTree(response.body())["data"]["url"].asText() to content
+    }
+
+    private fun config(node: Int, port: Int, nodes: Map<String, String>): Config {
+        val dir = workDir.resolve("node-$node").createDirectories()
+        return Config(
+            port = port,
+            baseUrl = "http://127.0.0.1:$port",
+            indexPath = dir.resolve("files.json").toString(),
+            storagePath = dir.resolve("storage").toString(),
+            chunkedUploads = ChunkedUploadConfig(path = dir.resolve("uploads").toString()),
+            quotas = QuotaConfig(usagePath = dir.resolve("usage.json").toString()),
+            metadataCache = MetadataCacheConfig(hotSetPath = dir.resolve("hotset.json").toString()),
+            views = ViewStatsConfig(path = dir.resolve("views.json").toString()),
+            cluster = ClusterConfig(enabled = true, nodeId = "node-$node", nodes = nodes, secret = "cluster-test"),
+        )
+    }
+
+    private fun users(node: Int): String = workDir.resolve("node-$node").createDirectories().resolve("users.json")
+        .also { it.writeText("""{"users":[{"username":"test","token":"$TOKEN"}]}""") }
+        .toString()
+
+    private fun idOf(url: String): String = url.substringAfterLast('/').substringBefore('.')
+
+    private companion object {
+        const val UPLOADS = 40
+        const val TOKEN = "test"
+        const val BOUNDARY = "imagery-test-boundary"
+    }
+}
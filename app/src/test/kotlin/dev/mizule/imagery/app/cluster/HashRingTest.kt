@@ -0,0 +1,69 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.cluster
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class HashRingTest {
+    private val keys = (0 until 30_000).map { "key-$it" }
+
+    @Test
+    fun `an empty ring has no owners`() {
+        assertNull(HashRing(emptyList(), 128).ownerOf("key"))
+    }
+
+    @Test
+    fun `owners do not depend on node order`() {
+        val ring = HashRing(listOf("a", "b", "c"), 128)
+        val reordered = HashRing(listOf("c", "a", "b"), 128)
+        keys.forEach { assertEquals(ring.ownerOf(it), reordered.ownerOf(it)) }
+    }
+
+    @Test
+    fun `keys spread evenly over the nodes`() {
+        val counts = HashRing(listOf("a", "b", "c"), 128).let { ring -> keys.groupingBy { ring.ownerOf(it)!! }.eachCount() }
+        assertEquals(setOf("a", "b", "c"), counts.keys)
+        counts.values.forEach { assertTrue(it in 7_000..13_000, "uneven spread $counts") }
+    }
+
+    @Test
+    fun `adding a node only moves keys to it`() {
+        val before = HashRing(listOf("a", "b", "c"), 128)
+        val after = HashRing(listOf("a", "b", "c", "d"), 128)
+        val moved = keys.filter { before.ownerOf(it) != after.ownerOf(it) }
+        moved.forEach { assertEquals("d", after.ownerOf(it)) }
+        assertTrue(moved.size in 5_000..10_000, "moved ${moved.size} keys")
+    }
+
+    @Test
+    fun `removing a node only moves its keys`() {
+        val before = HashRing(listOf("a", "b", "c"), 128)
+        val after = HashRing(listOf("a", "b"), 128)
+        keys.filter { before.ownerOf(it) != after.ownerOf(it) }.forEach { assertEquals("c", before.ownerOf(it)) }
+    }
+}
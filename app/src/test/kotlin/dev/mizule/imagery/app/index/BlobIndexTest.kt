@@ -0,0 +1,101 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.index
+
+import dev.mizule.imagery.app.model.UploadedFile
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class BlobIndexTest {
+    private val blobs = BlobIndex()
+
+    @Test
+    fun `signed-only uploads are only found by their owner`() {
+        blobs.added(upload("a", "alice", signedOnly = true))
+        assertNull(blobs.find(HASH, SIZE, "mallory"))
+        assertEquals("a", blobs.find(HASH, SIZE, "alice")?.id)
+    }
+
+    @Test
+    fun `public uploads are found by anyone`() {
+        blobs.added(upload("a", "alice", signedOnly = true))
+        blobs.added(upload("b", "bob"))
+        assertEquals("b", blobs.find(HASH, SIZE, "mallory")?.id)
+    }
+
+    @Test
+    fun `removing an upload stops finding it`() {
+        val upload = upload("a", "alice")
+        blobs.added(upload)
+        blobs.removed(upload)
+        assertNull(blobs.find(HASH, SIZE, "alice"))
+        assertNull(blobs.find(HASH, SIZE, "bob"))
+    }
+
+    @Test
+    fun `bytes stay referenced until every upload sharing them is gone`() {
+        val original = upload("a", "alice")
+        val copy = upload("b", "bob").copy(blob = original.fileName)
+        blobs.added(original)
+        blobs.added(copy)
+        blobs.removed(original)
+        assertTrue(blobs.isReferenced(original.fileName))
+        blobs.removed(copy)
+        assertFalse(blobs.isReferenced(original.fileName))
+    }
+
+    @Test
+    fun `another upload of the content is found once the one found is removed`() {
+        val first = upload("a", "alice")
+        blobs.added(first)
+        blobs.added(upload("b", "alice", signedOnly = true))
+        blobs.added(upload("c", "bob"))
+        blobs.removed(first)
+        assertEquals("c", blobs.find(HASH, SIZE, "mallory")?.id)
+        assertEquals("b", blobs.find(HASH, SIZE, "alice")?.id)
+    }
+
+    @Test
+    fun `signed-only uploads don't take the place of a removed public one`() {
+        val public = upload("a", "alice")
+        blobs.added(public)
+        blobs.added(upload("b", "alice", signedOnly = true))
+        blobs.removed(public)
+        assertNull(blobs.find(HASH, SIZE, "mallory"))
+        assertEquals("b", blobs.find(HASH, SIZE, "alice")?.id)
+    }
+
+    private fun upload(id: String, user: String, signedOnly: Boolean = false) = UploadedFile(
+        id, user, 0, "$id.png", "original.png", ".png", "image/png", SIZE, HASH, signedOnly = signedOnly,
+    )
+
+    private companion object {
+        const val HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"
+        const val SIZE = 4L
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.index
+
+import dev.mizule.imagery.app.model.UploadedFile
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class UserUploadIndexTest {
+    private val index = UserUploadIndex()
+
+    @Test
+    fun `pages walk every upload once, newest first`() {
+        repeat(25) { index.added(upload("id$it", date = it.toLong())) }
+        index.added(upload("other", date = 100, user = "someone else"))
+
+        val ids = pages("user", limit = 10)
+        assertEquals((24 downTo 0).map { "id$it" }, ids.flatten())
+        assertEquals(listOf(10, 10, 5), ids.map { it.size })
+    }
+
+    @Test
+    fun `uploads at the same time are split across pages without repeats`() {
+        repeat(7) { index.added(upload("id$it", date = 1)) }
+        val ids = pages("user", limit = 3).flatten()
+        assertEquals(7, ids.size)
+        assertEquals(ids.toSet().size, ids.size)
+    }
+
+    @Test
+    fun `a page that ends exactly at the last upload has no next cursor`() {
+        repeat(4) { index.added(upload("id$it", date = it.toLong())) }
+        val first = index.page("user", null, 2)
+        val second = index.page("user", first.next, 2)
+        assertEquals(listOf("id1", "id0"), second.ids)
+        assertNull(second.next)
+    }
+
+    @Test
+    fun `cursors stay valid while uploads come and go`() {
+        repeat(6) { index.added(upload("id$it", date = it.toLong())) }
+        val first = index.page("user", null, 3)
+        assertEquals(listOf("id5", "id4", "id3"), first.ids)
+
+        index.added(upload("new", date = 10))
+        index.removed(upload("id3", date = 3))
+        assertEquals(listOf("id2", "id1", "id0"), index.page("user", first.next, 3).ids)
+    }
+
+    @Test
+    fun `unknown users have no uploads`() {
+        val page = index.page("nobody", null, 10)
+        assertTrue(page.ids.isEmpty())
+        assertNull(page.next)
+    }
+
+    @Test
+    fun `malformed cursors are rejected`() {
+        index.added(upload("id", date = 1))
+        assertFailsWith<IllegalArgumentException> { index.page("user", "not a cursor!", 10) }
+        assertFailsWith<IllegalArgumentException> { index.page("user", "bm90LWEtZGF0ZQ", 10) }
+    }
+
+    private fun pages(user: String, limit: Int): List<List<String>> {
+        val pages = ArrayList<List<String>>()
+        var cursor: String? = null
+        do {
+            val page = index.page(user, cursor, limit)
+            pages += page.ids
+            cursor = page.next
+        } while (cursor != null)
+        return pages
+    }
+
+    private fun upload(id: String, date: Long, user: String = "user") =
+        UploadedFile(id, user, date, "$id.png", "$id.png", ".png", "image/png")
+}
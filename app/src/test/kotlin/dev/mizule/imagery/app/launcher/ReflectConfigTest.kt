@@ -0,0 +1,76 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.launcher
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import dev.mizule.imagery.app.auth.User
+import dev.mizule.imagery.app.config.Config
+import dev.mizule.imagery.app.model.UploadedFile
+import org.spongepowered.configurate.objectmapping.ConfigSerializable
+import java.nio.file.Path
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.nameWithoutExtension
+import kotlin.test.Test
+import kotlin.test.assertTrue
+
+/**
+ * Native executables only see the members of classes listed in the reflection configuration, so a config or
+ * model class missing from it only fails once deployed.
+ */
+class ReflectConfigTest {
+    private val registered: Set<String> = javaClass.getResourceAsStream(REFLECT_CONFIG)!!.use { input ->
+        jacksonObjectMapper().readValue<List<Map<String, Any>>>(input).mapTo(HashSet()) { it["name"] as String }
+    }
+
+    @Test
+    fun `config and model classes are registered`() {
+        val classes = classesNextTo(Config::class.java) + classesNextTo(UploadedFile::class.java) + User::class.java
+        val missing = classes
+            .filter { it.isAnnotationPresent(ConfigSerializable::class.java) || isDataClass(it) }
+            .map { it.name }
+            .filter { it !in registered }
+        assertTrue(missing.isEmpty(), "Not in $REFLECT_CONFIG: $missing")
+    }
+
+    @Test
+    fun `registered classes exist`() {
+        val unknown = registered.filter { runCatching { Class.forName(it) }.isFailure }
+        assertTrue(unknown.isEmpty(), "In $REFLECT_CONFIG but not on the classpath: $unknown")
+    }
+
+    private fun classesNextTo(type: Class<*>): List<Class<*>> {
+        val directory = Path.of(type.getResource("${type.simpleName}.class")!!.toURI()).parent
+        return directory.listDirectoryEntries("*.class")
+            .map { Class.forName("${type.packageName}.${it.nameWithoutExtension}", false, type.classLoader) }
+    }
+
+    // file facades and lambdas have no class descriptor for kotlin-reflect to read
+    private fun isDataClass(type: Class<*>): Boolean = type.getAnnotation(Metadata::class.java)?.kind == 1 && type.kotlin.isData
+
+    private companion object {
+        const val REFLECT_CONFIG = "/META-INF/native-image/dev.mizule/imagery-app/reflect-config.json"
+    }
+}
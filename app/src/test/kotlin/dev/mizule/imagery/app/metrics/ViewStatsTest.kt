@@ -0,0 +1,136 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.metrics
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import dev.mizule.imagery.app.config.ViewStatsConfig
+import dev.mizule.imagery.app.model.UploadedFile
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class ViewStatsTest {
+    private var now = 1_000 * MINUTE
+
+    @TempDir
+    lateinit var workDir: Path
+
+    @Test
+    fun `a one minute window counts the current minute`() {
+        val stats = stats(windowMinutes = 1)
+        repeat(3) { stats.record("a") }
+        stats.rotate()
+        assertEquals(3, stats.views("a").recent)
+    }
+
+    @Test
+    fun `the oldest minute of the window is still counted`() {
+        val stats = stats(windowMinutes = 3)
+        stats.record("a")
+        advance(stats, 2)
+        assertEquals(1, stats.views("a").recent)
+        advance(stats, 1)
+        assertEquals(0, stats.views("a").recent)
+        assertEquals(1, stats.views("a").total)
+    }
+
+    @Test
+    fun `trending uploads are ranked by recent views`() {
+        val stats = stats(windowMinutes = 10)
+        repeat(5) { stats.record("old") }
+        advance(stats, 10)
+        repeat(3) { stats.record("b") }
+        repeat(4) { stats.record("a") }
+        stats.record("c")
+        assertEquals(listOf("a", "b"), stats.trending(2, 10).map { it.id })
+        assertEquals(listOf(4L, 3L), stats.trending(2, 10).map { it.recent })
+    }
+
+    @Test
+    fun `totals survive persisting and deleted uploads are forgotten`() {
+        val stats = stats(windowMinutes = 10)
+        repeat(2) { stats.record("a") }
+        stats.record("b")
+        stats.persist()
+        stats.record("a")
+        assertEquals(3, stats.views("a").total)
+
+        stats.removed(UploadedFile("b", "user", 0, "b.png", "b.png", ".png", "image/png"))
+        stats.persist()
+        assertEquals(0, stats.views("b").total)
+    }
+
+    @Test
+    fun `trending only considers the most viewed uploads of each minute`() {
+        val stats = stats(windowMinutes = 10, trendingCandidates = 2)
+        repeat(5) { stats.record("a") }
+        repeat(3) { stats.record("b") }
+        stats.record("c")
+        assertEquals(listOf("a", "b"), stats.trending(10, 10).map { it.id })
+        assertEquals(1, stats.views("c").recent)
+
+        advance(stats, 1)
+        repeat(2) { stats.record("c") }
+        assertEquals(listOf("a", "b", "c"), stats.trending(10, 10).map { it.id })
+    }
+
+    @Test
+    fun `uploads that are no longer viewed keep their totals`() {
+        val stats = stats(windowMinutes = 10)
+        stats.record("a")
+        stats.persist()
+        // the second call finds nothing new and drops the idle counter
+        stats.persist()
+        assertEquals(1, stats.views("a").total)
+        stats.record("a")
+        stats.persist()
+        assertEquals(2, stats.views("a").total)
+    }
+
+    private fun stats(windowMinutes: Int, trendingCandidates: Int = 256) = ViewStats(
+        ViewStatsConfig(
+            path = workDir.resolve("views.json").toString(),
+            windowMinutes = windowMinutes,
+            trendingCandidates = trendingCandidates,
+        ),
+        MAPPER,
+        { now },
+    )
+
+    // maintenance rotates a few times a minute
+    private fun advance(stats: ViewStats, minutes: Int) {
+        repeat(minutes) {
+            stats.rotate()
+            now += MINUTE
+        }
+        stats.rotate()
+    }
+
+    private companion object {
+        const val MINUTE = 60_000L
+        val MAPPER = jacksonObjectMapper()
+    }
+}
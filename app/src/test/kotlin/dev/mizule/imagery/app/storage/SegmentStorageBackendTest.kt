@@ -0,0 +1,203 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.storage
+
+import org.junit.jupiter.api.io.TempDir
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.io.path.createDirectories
+import kotlin.io.path.exists
+import kotlin.io.path.fileSize
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.writeBytes
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class SegmentStorageBackendTest {
+    @TempDir
+    lateinit var workDir: Path
+
+    private val large = MemoryBackend()
+
+    @Test
+    fun `packing a new file only asks the large files`() {
+        segments().use { backend ->
+            backend.put("a.png", bytes(10).inputStream(), 10)
+            assertContentEquals(bytes(10), backend.get("a.png")?.readBytes())
+        }
+        assertEquals(0, large.deletes)
+    }
+
+    @Test
+    fun `packing a file that was stored large removes the large copy`() {
+        segments().use { backend ->
+            backend.put("a.png", bytes(100).inputStream(), 100)
+            assertTrue(large.exists("a.png"))
+            backend.put("a.png", bytes(10).inputStream(), 10)
+            assertFalse(large.exists("a.png"))
+            assertContentEquals(bytes(10), backend.get("a.png")?.readBytes())
+        }
+    }
+
+    @Test
+    fun `deleting a packed file removes it`() {
+        segments().use { backend ->
+            backend.put("a.png", bytes(10).inputStream(), 10)
+            assertTrue(backend.delete("a.png"))
+            assertFalse(backend.delete("a.png"))
+            assertNull(backend.get("a.png"))
+        }
+        assertEquals(0, large.deletes)
+    }
+
+    @Test
+    fun `large files are handed over as files`() {
+        val file = workDir.resolve("upload.part").also { it.writeBytes(bytes(100)) }
+        segments().use { backend ->
+            backend.putFile("a.png", file)
+            backend.putFile("b.png", workDir.resolve("small.part").also { it.writeBytes(bytes(10)) })
+            assertContentEquals(bytes(10), backend.get("b.png")?.readBytes())
+        }
+        assertEquals(listOf("a.png"), large.movedFiles)
+        assertFalse(large.exists("b.png"))
+    }
+
+    @Test
+    fun `packed files are listed with their own write time`() {
+        val before = System.currentTimeMillis()
+        segments().use { backend ->
+            backend.put("a.png", bytes(10).inputStream(), 10)
+            val listed = ArrayList<StoredObject>()
+            backend.list { listed += it }
+            assertEquals(listOf("a.png"), listed.map { it.key })
+            assertTrue(listed.single().lastModified in before..System.currentTimeMillis())
+        }
+    }
+
+    @Test
+    fun `files and deletes survive a restart`() {
+        segments().use { backend ->
+            repeat(10) { backend.put("$it.png", bytes(it + 1).inputStream(), it + 1L) }
+            backend.delete("3.png")
+            backend.put("4.png", bytes(20).inputStream(), 20)
+        }
+        segments().use { backend ->
+            assertNull(backend.get("3.png"))
+            assertContentEquals(bytes(20), backend.get("4.png")?.readBytes())
+            assertContentEquals(bytes(8), backend.get("7.png")?.readBytes())
+            assertEquals(9, keys(backend).size)
+        }
+    }
+
+    @Test
+    fun `a torn trailing record is truncated on startup`() {
+        segments().use { backend ->
+            backend.put("a.png", bytes(10).inputStream(), 10)
+        }
+        val segment = segmentFiles().single()
+        val intact = segment.fileSize()
+        // the start of a header, as left by a crash in the middle of an append
+        Files.write(segment, byteArrayOf(0x49, 0x4d, 0x47, 0x53, 0, 0), StandardOpenOption.APPEND)
+
+        segments().use { backend ->
+            assertEquals(intact, segment.fileSize())
+            assertContentEquals(bytes(10), backend.get("a.png")?.readBytes())
+            backend.put("b.png", bytes(5).inputStream(), 5)
+        }
+        segments().use { backend ->
+            assertContentEquals(bytes(5), backend.get("b.png")?.readBytes())
+        }
+    }
+
+    @Test
+    fun `compaction keeps live files and retires mostly dead segments`() {
+        segments(segmentSize = 200).use { backend ->
+            repeat(20) { backend.put("$it.png", bytes(40).inputStream(), 40) }
+            (0 until 20).filter { it % 5 != 0 }.forEach { backend.delete("$it.png") }
+            val before = segmentFiles().size
+
+            backend.compact()
+            // retired segments are only deleted by the next run
+            backend.compact()
+            assertTrue(segmentFiles().size < before, "${segmentFiles().size} segments left of $before")
+            assertEquals(setOf("0.png", "5.png", "10.png", "15.png"), keys(backend))
+            for (id in listOf(0, 5, 10, 15)) {
+                assertContentEquals(bytes(40), backend.get("$id.png")?.readBytes())
+            }
+        }
+        segments(segmentSize = 200).use { backend ->
+            assertEquals(setOf("0.png", "5.png", "10.png", "15.png"), keys(backend))
+        }
+    }
+
+    private fun segments(segmentSize: Long = 1024) =
+        SegmentStorageBackend(large, workDir.resolve("segments").also { it.createDirectories() }, 64, segmentSize, 0.5)
+
+    private fun segmentFiles(): List<Path> = workDir.resolve("segments").takeIf { it.exists() }
+        ?.listDirectoryEntries("segment-*.dat") ?: emptyList()
+
+    private fun keys(backend: StorageBackend): Set<String> = HashSet<String>().also { keys -> backend.list { keys += it.key } }
+
+    private fun bytes(size: Int) = ByteArray(size) { it.toByte() }
+
+    private class MemoryBackend : StorageBackend {
+        private val files = ConcurrentHashMap<String, ByteArray>()
+        val movedFiles = ArrayList<String>()
+        var deletes = 0
+
+        override fun put(key: String, input: InputStream, size: Long) {
+            files[key] = input.readBytes()
+        }
+
+        override fun putFile(key: String, file: Path) {
+            files[key] = Files.readAllBytes(file)
+            Files.delete(file)
+            movedFiles += key
+        }
+
+        override fun get(key: String): InputStream? = files[key]?.inputStream()
+
+        override fun getRange(key: String, offset: Long, length: Long): InputStream? =
+            files[key]?.let { it.inputStream(offset.toInt(), length.toInt()) }
+
+        override fun size(key: String): Long? = files[key]?.size?.toLong()
+
+        override fun delete(key: String): Boolean {
+            deletes++
+            return files.remove(key) != null
+        }
+
+        override fun list(action: (StoredObject) -> Unit) {
+            files.forEach { (key, data) -> action(StoredObject(key, data.size.toLong(), 0)) }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Imagery, licensed under the MIT License.
+ *
+ * Copyright (c) 2023 powercas_gamer
+ * Copyright (c) 2023 contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.mizule.imagery.app.util
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ThrottleTest {
+    private var now = 0L
+    private var slept = 0L
+    private val throttle = Throttle(BYTES_PER_SECOND, { now }) { nanos ->
+        slept += nanos
+        now += nanos
+    }
+
+    @Test
+    fun `keeps pacing past 10 GB`() {
+        val chunk = 64 * 1024 * 1024
+        val total = 12L * 1024 * 1024 * 1024
+        var sent = 0L
+        while (sent < total) {
+            throttle.acquire(chunk)
+            sent += chunk
+            // whatever was sent so far must have taken at least its share of time
+            assertTrue(now >= sent * 1_000_000_000.0 / BYTES_PER_SECOND - 1, "ran ahead after $sent bytes")
+        }
+        assertEquals(total / BYTES_PER_SECOND, slept / 1_000_000_000)
+    }
+
+    @Test
+    fun `does not sleep while behind the budget`() {
+        now += 10_000_000_000
+        throttle.acquire(BYTES_PER_SECOND.toInt())
+        assertEquals(0, slept)
+    }
+
+    @Test
+    fun `reset forgets time spent idle`() {
+        now += 10_000_000_000
+        throttle.reset()
+        throttle.acquire(BYTES_PER_SECOND.toInt())
+        assertEquals(1_000_000_000, slept)
+    }
+
+    private companion object {
+        const val BYTES_PER_SECOND = 256L * 1024 * 1024
+    }
+}
@@ -17,6 +17,7 @@
     implementation(libs.kotlin.std)
     implementation(libs.idea.gradle)
     implementation(libs.gremlin.gradle)
+    implementation(libs.graalvm.native.gradle)
     implementation(libs.blossom)
 }
 